@@ -0,0 +1,75 @@
+package ManhattanDistance;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * compares the latency of changing one flag and reading the count from a CoverageIndex
+ * with recomputing the count from scratch with flag_fill and multi_pass
+ * each update toggles a cell from a fixed random sequence, adding a flag or removing it
+ * run with java -jar target/benchmarks.jar CoverageIndexBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class CoverageIndexBenchmark {
+    private static final int TOGGLE_COUNT = 1 << 16;
+    @Param({"1000"})
+    public int rows;
+    @Param({"1000"})
+    public int cols;
+    @Param({"0.1", "1"})
+    public double percentage;
+    @Param({"1", "4", "16", "64"})
+    public int distanceThreshold;
+
+    private FlagValues flagData;
+    private CoverageIndex index;
+    private int[] toggleRows;
+    private int[] toggleCols;
+    private int toggle;
+
+    @Setup
+    public void setup() {
+        flagData = GridGenerator.generate(rows, cols, percentage, distanceThreshold);
+        index = new CoverageIndex(flagData);
+        Random random = new Random(42);
+        toggleRows = new int[TOGGLE_COUNT];
+        toggleCols = new int[TOGGLE_COUNT];
+        for (int i = 0; i < TOGGLE_COUNT; i++) {
+            toggleRows[i] = random.nextInt(rows);
+            toggleCols[i] = random.nextInt(cols);
+        }
+    }
+
+    @Benchmark
+    public long indexUpdate() {
+        int i = toggle++ & TOGGLE_COUNT - 1;
+        if (!index.addFlag(toggleRows[i], toggleCols[i])) index.removeFlag(toggleRows[i], toggleCols[i]);
+        return index.count();
+    }
+
+    @Benchmark
+    public long recomputeFlagFill() {
+        return ScanFlagFill.flagFill(flagData);
+    }
+
+    @Benchmark
+    public long recomputeMultiPass() {
+        return ScanMultiPass.flagScan(flagData);
+    }
+}
@@ -0,0 +1,59 @@
+package ManhattanDistance;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * times each engine across a matrix of flag percentage and distanceThreshold
+ * the grid is generated once per parameter set, so only the engine is measured
+ * comparing flag_fill with the dense engines on each row of the output shows
+ * where the sparse / dense crossover is on the machine running it
+ * run with java -jar target/benchmarks.jar EngineBenchmark
+ * narrow the matrix with -p, for example -p engine=flag_fill,multi_pass -p distanceThreshold=8
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class EngineBenchmark {
+    @Param({"1000"})
+    public int rows;
+    @Param({"1000"})
+    public int cols;
+    @Param({"0.01", "0.1", "1", "5", "20"})
+    public double percentage;
+    @Param({"1", "4", "16", "64"})
+    public int distanceThreshold;
+    /** an Engine argName, or mem_saver for the chunked multi-pass scan */
+    @Param({"flag_fill", "multi_pass", "mem_saver", "distance_transform", "bitset", "streaming", "row_interval", "rotated_union"})
+    public String engine;
+
+    private FlagValues flagData;
+    private Engine selected;
+    private Engine.Options options;
+
+    @Setup
+    public void setup() {
+        flagData = GridGenerator.generate(rows, cols, percentage, distanceThreshold);
+        boolean memSaver = engine.equals("mem_saver");
+        selected = memSaver ? Engine.MULTI_PASS : Engine.fromArgName(engine);
+        options = new Engine.Options(memSaver, 1, false);
+    }
+
+    @Benchmark
+    public long count() {
+        return selected.count(flagData, options);
+    }
+}
@@ -0,0 +1,46 @@
+package ManhattanDistance;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * times parsing a JSON grid into FlagValues
+ * the document is generated in memory in the gen_grid2.py layout
+ * run with java -jar target/benchmarks.jar GridReaderBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class GridReaderBenchmark {
+    @Param({"1000"})
+    public int rows;
+    @Param({"1000"})
+    public int cols;
+    @Param({"0.1", "5", "20"})
+    public double percentage;
+
+    private String jsonData;
+
+    @Setup
+    public void setup() {
+        jsonData = GridGenerator.generateJson(rows, cols, percentage, 4);
+    }
+
+    @Benchmark
+    public FlagValues parseJsonNeighborData() {
+        return GridReader.parseJsonNeighborData(jsonData);
+    }
+}
@@ -0,0 +1,55 @@
+package ManhattanDistance;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * compares the scalar multi-pass scan with the Vector API row update
+ * run with java -jar target/benchmarks.jar ScanVectorBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class ScanVectorBenchmark {
+    @Param({"2000"})
+    public int rows;
+    @Param({"2000"})
+    public int cols;
+    @Param({"0.1", "1"})
+    public double percentage;
+    @Param({"4", "32"})
+    public int distanceThreshold;
+
+    private FlagValues flagData;
+
+    @Setup
+    public void setup() {
+        if (!ScanMultiPass.VECTOR_AVAILABLE) {
+            throw new IllegalStateException("run with --add-modules jdk.incubator.vector");
+        }
+        flagData = GridGenerator.generate(rows, cols, percentage, distanceThreshold);
+    }
+
+    @Benchmark
+    public long scalar() {
+        return ScanMultiPass.flagScan(flagData, new Engine.Options(false, 1, false));
+    }
+
+    @Benchmark
+    public long vector() {
+        return ScanMultiPass.flagScan(flagData, new Engine.Options(false, 1, true));
+    }
+}
@@ -0,0 +1,48 @@
+package ManhattanDistance;
+
+import java.util.ArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * times every engine on generated grids spanning grid size, flag percentage and distanceThreshold
+ * and fits a CostModel to the timings, so engine selection reflects the machine it runs on
+ */
+class Calibration {
+    private static Logger logger = LoggerFactory.getLogger(Calibration.class);
+    private static final int[] GRID_SIDES = {200, 400, 1000};
+    private static final double[] PERCENTAGES = {0.05, 0.5, 5};
+    private static final int[] DISTANCE_THRESHOLDS = {1, 4, 16, 64};
+    private static final int REPEATS = 3;
+
+    /**
+     * runs every engine over the grid matrix, once untimed to warm up the JIT,
+     * then keeps the fastest of REPEATS timed runs of each
+     * @param options the memSaver, threads, simd and offHeap settings of the runs the model will pick engines for
+     * @return the cost model fitted to the timings, recording options
+     */
+    public static CostModel calibrate(Engine.Options options) {
+        ArrayList<CostModel.Sample> samples = new ArrayList<>();
+        for (int side : GRID_SIDES) {
+            for (double percentage : PERCENTAGES) {
+                for (int distanceThreshold : DISTANCE_THRESHOLDS) {
+                    FlagValues flagData = GridGenerator.generate(side, side, percentage, distanceThreshold);
+                    for (Engine engine : Engine.values()) {
+                        engine.count(flagData, options);
+                        long best = Long.MAX_VALUE;
+                        for (int i = 0; i < REPEATS; i++) {
+                            long startTime = System.nanoTime();
+                            engine.count(flagData, options);
+                            best = Math.min(best, System.nanoTime() - startTime);
+                        }
+                        logger.info("calibrate " + engine + " side " + side + " percentage " + percentage +
+                                " distanceThreshold " + distanceThreshold + " ns " + best);
+                        samples.add(new CostModel.Sample(engine, (long) side * side, flagData.flagCount,
+                                distanceThreshold, best));
+                    }
+                }
+            }
+        }
+        return CostModel.fit(samples, options);
+    }
+}
@@ -0,0 +1,307 @@
+package ManhattanDistance;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Properties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * predicted run time of each engine in nanoseconds, fitted by Calibration on the machine it runs on
+ * the cost of an engine is a non negative weighting of four terms
+ *   cells - work proportional to the grid, allocation and whole grid sweeps
+ *   cells * distanceThreshold - a sweep of the grid per step
+ *   flags * (distanceThreshold + 1)^2 - a window around every flag
+ *   flags - work per flag whatever the grid and distanceThreshold
+ * saved to and loaded from a properties file so every run can use the fitted model,
+ * together with the engine options the timings were taken with
+ */
+class CostModel {
+    private static Logger logger = LoggerFactory.getLogger(CostModel.class);
+    public static final String DEFAULT_PROFILE = "neighbors-profile.properties";
+    private static final String[] TERM_NAMES = {"cells", "cellSteps", "flagWindow", "flags"};
+
+    /**
+     * one timed run of an engine
+     * @param engine the engine timed
+     * @param cells grid row count * column count
+     * @param flags count of flagged values
+     * @param distanceThreshold the number of steps walked from flags
+     * @param nanos the measured run time
+     */
+    public record Sample(Engine engine, long cells, long flags, int distanceThreshold, double nanos) {}
+
+    private static final String[] OPTION_NAMES = {"memSaver", "threads", "simd", "offHeap"};
+
+    private final EnumMap<Engine, double[]> coefficients;
+    private final Engine.Options options;
+
+    private CostModel(EnumMap<Engine, double[]> coefficients, Engine.Options options) {
+        this.coefficients = coefficients;
+        this.options = options;
+    }
+
+    /**
+     * @return the engine options the timings were taken with, null for a profile that does not record them
+     */
+    public Engine.Options options() {
+        return options;
+    }
+
+    /**
+     * computes the cost terms of a grid
+     * @param cells grid row count * column count
+     * @param flags count of flagged values
+     * @param distanceThreshold the number of steps walked from flags
+     * @return the value of each term in TERM_NAMES order
+     */
+    private static double[] terms(long cells, long flags, int distanceThreshold) {
+        double window = (distanceThreshold + 1.0) * (distanceThreshold + 1.0);
+        return new double[] {cells, (double) cells * distanceThreshold, flags * window, flags};
+    }
+
+    /**
+     * predicts the run time of an engine
+     * @param engine the engine to predict
+     * @param flagData grid dimensions, flag count and distanceThreshold
+     * @return predicted nanoseconds, or infinity if the engine was not calibrated
+     */
+    public double predict(Engine engine, FlagValues flagData) {
+        double[] weights = coefficients.get(engine);
+        if (weights == null) return Double.POSITIVE_INFINITY;
+        double[] values = terms((long) flagData.rowCount * flagData.colCount, flagData.flagCount,
+                flagData.distanceThreshold);
+        double cost = 0;
+        for (int i = 0; i < weights.length; i++) {
+            cost += weights[i] * values[i];
+        }
+        return cost;
+    }
+
+    /**
+     * picks the engine with the lowest predicted run time
+     * @param flagData grid dimensions, flag count and distanceThreshold
+     * @return the fastest calibrated engine
+     */
+    public Engine fastest(FlagValues flagData) {
+        Engine best = null;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (Engine engine : coefficients.keySet()) {
+            double cost = predict(engine, flagData);
+            logger.info("predicted " + engine + " ms: " + cost / 1_000_000);
+            if (best == null || cost < bestCost) {
+                best = engine;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * fits each engine's weights to its samples by least squares
+     * every subset of the terms is solved and the best fit without negative weights is kept,
+     * which is an exact non negative least squares for a handful of terms
+     * @param samples timed runs, engines without samples are left out of the model
+     * @param options the engine options the samples were timed with
+     * @return the fitted model
+     */
+    public static CostModel fit(List<Sample> samples, Engine.Options options) {
+        EnumMap<Engine, double[]> coefficients = new EnumMap<>(Engine.class);
+        for (Engine engine : Engine.values()) {
+            List<Sample> engineSamples = samples.stream().filter(s -> s.engine() == engine).toList();
+            if (engineSamples.isEmpty()) continue;
+            double[] best = null;
+            double bestError = Double.POSITIVE_INFINITY;
+            for (int subset = 1; subset < 1 << TERM_NAMES.length; subset++) {
+                double[] weights = solveSubset(engineSamples, subset);
+                if (weights == null) continue;
+                double error = squaredError(engineSamples, weights);
+                if (error < bestError) {
+                    best = weights;
+                    bestError = error;
+                }
+            }
+            if (best != null) coefficients.put(engine, best);
+        }
+        return new CostModel(coefficients, options);
+    }
+
+    /**
+     * least squares over the terms in subset with the other weights fixed at zero
+     * @param samples timed runs of one engine
+     * @param subset bit i set when term i is used
+     * @return the weights, or null if the system is singular or a weight is negative
+     */
+    private static double[] solveSubset(List<Sample> samples, int subset) {
+        int termCount = TERM_NAMES.length;
+        int[] used = new int[Integer.bitCount(subset)];
+        for (int term = 0, i = 0; term < termCount; term++) {
+            if ((subset & 1 << term) != 0) used[i++] = term;
+        }
+        int size = used.length;
+        // normal equations, augmented with the right hand side
+        double[][] matrix = new double[size][size + 1];
+        for (Sample sample : samples) {
+            double[] values = terms(sample.cells(), sample.flags(), sample.distanceThreshold());
+            for (int row = 0; row < size; row++) {
+                for (int col = 0; col < size; col++) {
+                    matrix[row][col] += values[used[row]] * values[used[col]];
+                }
+                matrix[row][size] += values[used[row]] * sample.nanos();
+            }
+        }
+        for (int pivot = 0; pivot < size; pivot++) {
+            int best = pivot;
+            for (int row = pivot + 1; row < size; row++) {
+                if (Math.abs(matrix[row][pivot]) > Math.abs(matrix[best][pivot])) best = row;
+            }
+            double[] swap = matrix[pivot];
+            matrix[pivot] = matrix[best];
+            matrix[best] = swap;
+            if (Math.abs(matrix[pivot][pivot]) < 1e-12) return null;
+            for (int row = 0; row < size; row++) {
+                if (row == pivot) continue;
+                double factor = matrix[row][pivot] / matrix[pivot][pivot];
+                for (int col = pivot; col <= size; col++) {
+                    matrix[row][col] -= factor * matrix[pivot][col];
+                }
+            }
+        }
+        double[] weights = new double[termCount];
+        for (int i = 0; i < size; i++) {
+            weights[used[i]] = matrix[i][size] / matrix[i][i];
+            if (weights[used[i]] < 0) return null;
+        }
+        return weights;
+    }
+
+    /**
+     * @param samples timed runs of one engine
+     * @param weights weights of each term
+     * @return sum of squared differences between predicted and measured nanoseconds
+     */
+    private static double squaredError(List<Sample> samples, double[] weights) {
+        double error = 0;
+        for (Sample sample : samples) {
+            double[] values = terms(sample.cells(), sample.flags(), sample.distanceThreshold());
+            double predicted = 0;
+            for (int i = 0; i < weights.length; i++) {
+                predicted += weights[i] * values[i];
+            }
+            error += (predicted - sample.nanos()) * (predicted - sample.nanos());
+        }
+        return error;
+    }
+
+    /**
+     * writes the model as properties, one key per engine and term, and one per option it was timed with
+     * @param profile the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path profile) throws IOException {
+        Properties properties = new Properties();
+        for (Engine engine : coefficients.keySet()) {
+            double[] weights = coefficients.get(engine);
+            for (int i = 0; i < TERM_NAMES.length; i++) {
+                properties.setProperty(engine.argName + "." + TERM_NAMES[i], Double.toString(weights[i]));
+            }
+        }
+        if (options != null) {
+            String[] values = {String.valueOf(options.memSaver()), String.valueOf(options.threads()),
+                    String.valueOf(options.simd()), String.valueOf(options.offHeap())};
+            for (int i = 0; i < OPTION_NAMES.length; i++) {
+                properties.setProperty("options." + OPTION_NAMES[i], values[i]);
+            }
+        }
+        try (Writer writer = Files.newBufferedWriter(profile)) {
+            properties.store(writer, "engine cost model in nanoseconds, written by Neighbors -calibrate");
+        }
+    }
+
+    /**
+     * reads a model written by save
+     * engines without every term in the file are left out of the model
+     * a warning is logged when the profile was timed with other options than this run,
+     * since threads, simd and offHeap change which engine is fastest
+     * @param profile the file to read
+     * @param runOptions the engine options of this run
+     * @return the model, or null if the file does not exist or cannot be read
+     */
+    public static CostModel load(Path profile, Engine.Options runOptions) {
+        if (!Files.isRegularFile(profile)) return null;
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(profile)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            logger.warn("could not read cost profile " + profile + ": " + e.getMessage());
+            return null;
+        }
+        EnumMap<Engine, double[]> coefficients = new EnumMap<>(Engine.class);
+        for (Engine engine : Engine.values()) {
+            double[] weights = new double[TERM_NAMES.length];
+            boolean complete = true;
+            for (int i = 0; i < TERM_NAMES.length && complete; i++) {
+                String value = properties.getProperty(engine.argName + "." + TERM_NAMES[i]);
+                try {
+                    weights[i] = Double.parseDouble(value);
+                } catch (NullPointerException | NumberFormatException e) {
+                    complete = false;
+                }
+            }
+            if (complete) coefficients.put(engine, weights);
+        }
+        if (coefficients.isEmpty()) return null;
+        Engine.Options options = loadOptions(properties);
+        logger.info("loaded cost profile " + profile + " for " + coefficients.keySet() + " timed with " + options);
+        if (options == null) {
+            logger.warn("cost profile " + profile + " does not record the options it was timed with, " +
+                    "run -calibrate again with this run's options");
+        } else if (!options.equals(runOptions)) {
+            logger.warn("cost profile " + profile + " was timed with " + options + " but this run uses " +
+                    runOptions + ", run -calibrate again with the same options for a reliable choice");
+        }
+        return new CostModel(coefficients, options);
+    }
+
+    /**
+     * reads the options keys written by save
+     * @param properties the loaded profile
+     * @return the options, or null if any key is missing or malformed
+     */
+    private static Engine.Options loadOptions(Properties properties) {
+        String[] values = new String[OPTION_NAMES.length];
+        for (int i = 0; i < OPTION_NAMES.length; i++) {
+            values[i] = properties.getProperty("options." + OPTION_NAMES[i]);
+            if (values[i] == null) return null;
+        }
+        try {
+            return new Engine.Options(Boolean.parseBoolean(values[0]), Integer.parseInt(values[1]),
+                    Boolean.parseBoolean(values[2]), Boolean.parseBoolean(values[3]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the weights of every engine, for printing after calibration
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (options != null) sb.append("timed with ").append(options).append("\n");
+        for (Engine engine : coefficients.keySet()) {
+            double[] weights = coefficients.get(engine);
+            sb.append(engine.argName);
+            for (int i = 0; i < TERM_NAMES.length; i++) {
+                sb.append(" ").append(TERM_NAMES[i]).append("=").append(weights[i]);
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+}
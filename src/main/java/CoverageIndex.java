@@ -0,0 +1,161 @@
+package ManhattanDistance;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * keeps the neighbor count of a fixed grid up to date as flags are added and removed
+ * every cell holds the number of flags within distanceThreshold of it, a cell is counted
+ * while that number is above zero, so adding or removing a flag only touches its diamond,
+ * O(distanceThreshold^2) cells, instead of recomputing the grid
+ * the reference counts are held in a NeighborGrid sized for the largest possible count,
+ * and the flagged cells in a bitmap per row, allocated when the row is first flagged,
+ * so neither is indexed by an int over the whole grid
+ * not thread safe, callers updating from several threads must synchronize
+ */
+public class CoverageIndex {
+    private static Logger logger = LoggerFactory.getLogger(CoverageIndex.class);
+    public final int rowCount;
+    public final int colCount;
+    public final int distanceThreshold;
+    /** distanceThreshold limited to the grid, so row and column arithmetic cannot overflow */
+    private final int reach;
+    private final NeighborGrid references;
+    /** flagged cells, bit col % 64 of word col / 64 of the row's words, null for a row never flagged */
+    private final long[][] flagged;
+    private int flagCount;
+    private long neighborCount;
+
+    /**
+     * builds the index from the flags of a grid
+     * @param flagData grid dimensions, flag coordinates and distanceThreshold
+     */
+    public CoverageIndex(FlagValues flagData) {
+        this.rowCount = flagData.rowCount;
+        this.colCount = flagData.colCount;
+        this.distanceThreshold = flagData.distanceThreshold;
+        this.reach = (int) Math.min(distanceThreshold, (long) rowCount + colCount);
+        // a diamond holds 2 * D * (D + 1) + 1 cells, no cell can be referenced by more flags,
+        // nor by more than the int flagCount can hold
+        long diamondCells = 2L * reach * (reach + 1) + 1;
+        long maxReferences = Math.min(diamondCells, (long) rowCount * colCount);
+        this.references = NeighborGrid.create(rowCount, colCount, (int) Math.min(maxReferences, Integer.MAX_VALUE));
+        this.flagged = new long[rowCount][];
+        for (FlagList.Cursor flag = flagData.flags.cursor(); flag.next(); ) {
+            setFlag(flag.row(), flag.col());
+        }
+        logger.info("coverage index flags " + flagCount + " neighbor count " + neighborCount +
+                " reference bytes " + references.bytes());
+    }
+
+    /**
+     * flags a cell, covering every cell within distanceThreshold of it
+     * @param row
+     * @param col
+     * @return false if the cell was already flagged
+     * @throws IllegalArgumentException if the cell is outside the grid
+     */
+    public boolean addFlag(int row, int col) {
+        return setFlag(row, col);
+    }
+
+    /**
+     * addFlag, kept private so the constructor never calls a method a subclass may override
+     * @param row
+     * @param col
+     * @return false if the cell was already flagged
+     * @throws IllegalArgumentException if the cell is outside the grid
+     */
+    private boolean setFlag(int row, int col) {
+        checkCell(row, col);
+        if (isSet(row, col)) return false;
+        if (flagged[row] == null) flagged[row] = new long[(int) ((colCount + 63L) >>> 6)];
+        flagged[row][col >>> 6] |= 1L << col;
+        flagCount++;
+        updateDiamond(row, col, 1);
+        return true;
+    }
+
+    /**
+     * removes the flag from a cell, uncovering cells no other flag reaches
+     * @param row
+     * @param col
+     * @return false if the cell was not flagged
+     * @throws IllegalArgumentException if the cell is outside the grid
+     */
+    public boolean removeFlag(int row, int col) {
+        checkCell(row, col);
+        if (!isSet(row, col)) return false;
+        flagged[row][col >>> 6] &= ~(1L << col);
+        flagCount--;
+        updateDiamond(row, col, -1);
+        return true;
+    }
+
+    /**
+     * @param row
+     * @param col
+     * @return whether the cell is flagged
+     * @throws IllegalArgumentException if the cell is outside the grid
+     */
+    public boolean isFlagged(int row, int col) {
+        checkCell(row, col);
+        return isSet(row, col);
+    }
+
+    /**
+     * @return count of cells falling within distanceThreshold of a flag
+     */
+    public long count() {
+        return neighborCount;
+    }
+
+    public int flagCount() {
+        return flagCount;
+    }
+
+    /**
+     * checks a cell is on the grid
+     * @param row
+     * @param col
+     * @throws IllegalArgumentException if the cell is outside the grid
+     */
+    private void checkCell(int row, int col) {
+        if (row < 0 || row >= rowCount || col < 0 || col >= colCount) {
+            throw new IllegalArgumentException("flag " + row + "," + col + " is outside the " +
+                    rowCount + " x " + colCount + " grid");
+        }
+    }
+
+    /**
+     * @param row a row on the grid
+     * @param col a column on the grid
+     * @return whether the flagged bit of the cell is set
+     */
+    private boolean isSet(int row, int col) {
+        return flagged[row] != null && (flagged[row][col >>> 6] & 1L << col) != 0;
+    }
+
+    /**
+     * adds delta to the reference count of every cell in the diamond around a flag clipped to the grid,
+     * counting cells whose reference count rises from or falls to zero
+     * @param targetRow the flag row
+     * @param targetCol the flag column
+     * @param delta 1 when the flag is added, -1 when it is removed
+     */
+    private void updateDiamond(int targetRow, int targetCol, int delta) {
+        int minRow = Math.max(targetRow - reach, 0);
+        int maxRow = Math.min(rowCount - 1, targetRow + reach);
+        for (int row = minRow; row <= maxRow; row++) {
+            int halfWidth = reach - Math.abs(row - targetRow);
+            long rowStart = references.index(row, 0);
+            long endIndex = rowStart + Math.min(colCount - 1, targetCol + halfWidth);
+            for (long i = rowStart + Math.max(0, targetCol - halfWidth); i <= endIndex; i++) {
+                int previous = references.get(i);
+                references.set(i, previous + delta);
+                if (delta > 0 && previous == 0) neighborCount++;
+                else if (delta < 0 && previous == 1) neighborCount--;
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package ManhattanDistance;
+
+/**
+ * the algorithms available to count neighbors
+ * each engine is tagged with whether it is a dense or a sparse algorithm
+ * so that the density calculation can choose between them
+ */
+enum Engine {
+    FLAG_FILL("flag_fill", false),
+    MULTI_PASS("multi_pass", true),
+    DISTANCE_TRANSFORM("distance_transform", true),
+    BITSET("bitset", true),
+    STREAMING("streaming", true),
+    ROW_INTERVAL("row_interval", false),
+    ROTATED_UNION("rotated_union", false);
+
+    /**
+     * run settings shared by all engines, each engine uses the ones it supports
+     * @param memSaver use a chunked approach saving memory
+     * @param threads the number of threads available, 1 runs on the calling thread
+     * @param simd use the Vector API where the engine has a version for it and the module is loaded
+     * @param offHeap hold the multi-pass scan grid in native memory, mapped to a scratch file when larger than RAM
+     */
+    public record Options(boolean memSaver, int threads, boolean simd, boolean offHeap) {
+        public Options(boolean memSaver, int threads, boolean simd) {
+            this(memSaver, threads, simd, false);
+        }
+    }
+
+    public final String argName;
+    public final boolean dense;
+
+    Engine(String argName, boolean dense) {
+        this.argName = argName;
+        this.dense = dense;
+    }
+
+    /**
+     * runs the engine against the flag data
+     * @param flagData grid dimensions, flag coordinates and distanceThreshold
+     * @param options memory saving and threading settings
+     * @return count of cells falling within distanceThreshold of true values in array
+     */
+    @SuppressWarnings("try")
+    public long count(FlagValues flagData, Options options) {
+        try (Metrics.Phase phase = Metrics.phase("count", argName)) {
+            return switch (this) {
+                case FLAG_FILL -> ScanFlagFill.flagFill(flagData, options.threads());
+                case MULTI_PASS -> ScanMultiPass.flagScan(flagData, options);
+                case DISTANCE_TRANSFORM -> ScanDistanceTransform.distanceScan(flagData);
+                case BITSET -> ScanBitset.bitsetScan(flagData);
+                case STREAMING -> ScanStreaming.streamScan(flagData);
+                case ROW_INTERVAL -> ScanRowIntervals.intervalScan(flagData);
+                case ROTATED_UNION -> ScanRotatedUnion.rotatedScan(flagData);
+            };
+        }
+    }
+
+    /**
+     * an estimate of the heap the engine's working arrays take on a grid, used to skip -perform_test
+     * alternates that would not fit. Grids NeighborGrid.create would tile are counted at their flat size,
+     * as tiled memory follows the covered area, which is not known before counting
+     * @param flagData grid dimensions, flag coordinates and distanceThreshold
+     * @param options memory saving, vector and off heap settings
+     * @return the estimated bytes
+     */
+    public long heapBytes(FlagValues flagData, Options options) {
+        long cells = (long) flagData.rowCount * flagData.colCount;
+        int gridValue = (int) Math.min(Integer.MAX_VALUE, flagData.distanceThreshold + 1L);
+        return switch (this) {
+            case FLAG_FILL -> cells * NeighborGrid.cellBytes(gridValue);
+            case MULTI_PASS -> {
+                if (options.offHeap()) yield 0;
+                long rows = !options.memSaver() ? flagData.rowCount : Math.min(flagData.rowCount,
+                        Math.max(ScanMultiPass.MEM_SAVER_ROWS, 2L * flagData.distanceThreshold + 2));
+                yield rows * flagData.colCount * NeighborGrid.cellBytes(options.simd() ? Integer.MAX_VALUE : gridValue);
+            }
+            case DISTANCE_TRANSFORM -> cells * Integer.BYTES;
+            case BITSET -> flagData.rowCount * ((flagData.colCount + 63L) / 64) * Long.BYTES;
+            // the column arrays and at least four queue slots per column
+            case STREAMING -> 8L * flagData.colCount * Integer.BYTES;
+            // a few sort keys, edges and intervals per flag
+            case ROW_INTERVAL, ROTATED_UNION -> 8L * flagData.flags.size() * Long.BYTES;
+        };
+    }
+
+    /**
+     * lists the command line names of engines matching a density
+     * @param dense whether to list dense or sparse engines
+     * @return the names separated by commas
+     */
+    public static String argNames(boolean dense) {
+        StringBuilder sb = new StringBuilder();
+        for (Engine engine : values()) {
+            if (engine.dense != dense) continue;
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(engine.argName);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * finds an engine from its command line name
+     * @param argName the name passed on the command line
+     * @return the matching engine or null if there is none
+     */
+    public static Engine fromArgName(String argName) {
+        for (Engine engine : values()) {
+            if (engine.argName.equals(argName)) return engine;
+        }
+        return null;
+    }
+}
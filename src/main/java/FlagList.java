@@ -0,0 +1,172 @@
+package ManhattanDistance;
+
+import java.util.Arrays;
+
+/**
+ * coordinates of flagged values stored as two parallel primitive arrays
+ * no object is created per flag, the arrays grow by doubling as flags are added
+ *
+ * Flags are guaranteed to be sorted by row: add rejects a flag on an earlier row than the last one.
+ * Engines rely on this to find the flags of a row range by index, for example
+ * ScanMultiPass.flagScanRows continuing from flagStartIndex and the stripes of ScanFlagFill.
+ * Within a row the order is the order added, which is column order when read from JSON
+ */
+class FlagList {
+    private static final int INITIAL_CAPACITY = 16;
+    private int[] rows;
+    private int[] cols;
+    private int size;
+
+    public FlagList() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of flags held before the arrays grow
+     */
+    public FlagList(int capacity) {
+        this.rows = new int[Math.max(1, capacity)];
+        this.cols = new int[Math.max(1, capacity)];
+        this.size = 0;
+    }
+
+    /**
+     * takes over arrays of flags that are already in row order, without copying
+     * @param rows the flag rows, not decreasing
+     * @param cols the flag columns
+     * @param size the number of flags in the arrays
+     */
+    FlagList(int[] rows, int[] cols, int size) {
+        for (int i = 1; i < size; i++) {
+            if (rows[i] < rows[i - 1]) {
+                throw new IllegalArgumentException("flag row " + rows[i] + " added after row " + rows[i - 1]);
+            }
+        }
+        this.rows = rows.length > 0 ? rows : new int[1];
+        this.cols = cols.length > 0 ? cols : new int[1];
+        this.size = size;
+    }
+
+    /**
+     * walks the flags in row order without creating an object per flag
+     * call next before reading the first flag
+     */
+    public class Cursor {
+        private int index;
+
+        private Cursor(int startIndex) {
+            this.index = startIndex - 1;
+        }
+
+        /**
+         * moves to the next flag
+         * @return false when there are no more flags
+         */
+        public boolean next() {
+            return ++index < size;
+        }
+
+        public int row() {
+            return rows[index];
+        }
+
+        public int col() {
+            return cols[index];
+        }
+
+        /**
+         * @return the position of the current flag in the list
+         */
+        public int index() {
+            return index;
+        }
+    }
+
+    /**
+     * adds a flag, rows must not decrease
+     * @param row
+     * @param col
+     */
+    public void add(int row, int col) {
+        if (size > 0 && row < rows[size - 1]) {
+            throw new IllegalArgumentException("flag row " + row + " added after row " + rows[size - 1]);
+        }
+        if (size == rows.length) {
+            int capacity = rows.length * 2;
+            rows = Arrays.copyOf(rows, capacity);
+            cols = Arrays.copyOf(cols, capacity);
+        }
+        rows[size] = row;
+        cols[size] = col;
+        size++;
+    }
+
+    /**
+     * adds every flag of another list, moved down by rowOffset rows
+     * the rows of other plus rowOffset must not be before the last row of this list
+     * @param other flags with rows counted from rowOffset
+     * @param rowOffset added to the row of every flag
+     * @param colLimit flags in this column or later are left out
+     */
+    public void append(FlagList other, int rowOffset, int colLimit) {
+        if (other.size == 0) return;
+        if (size > 0 && other.rows[0] + rowOffset < rows[size - 1]) {
+            throw new IllegalArgumentException("flag row " + (other.rows[0] + rowOffset) +
+                    " added after row " + rows[size - 1]);
+        }
+        if (size + other.size > rows.length) {
+            int capacity = Math.max(rows.length * 2, size + other.size);
+            rows = Arrays.copyOf(rows, capacity);
+            cols = Arrays.copyOf(cols, capacity);
+        }
+        for (int i = 0; i < other.size; i++) {
+            if (other.cols[i] >= colLimit) continue;
+            rows[size] = other.rows[i] + rowOffset;
+            cols[size] = other.cols[i];
+            size++;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int row(int index) {
+        return rows[index];
+    }
+
+    public int col(int index) {
+        return cols[index];
+    }
+
+    /**
+     * @return a cursor before the first flag
+     */
+    public Cursor cursor() {
+        return new Cursor(0);
+    }
+
+    /**
+     * @param startIndex the index of the first flag the cursor moves to
+     * @return a cursor before the flag at startIndex
+     */
+    public Cursor cursor(int startIndex) {
+        return new Cursor(startIndex);
+    }
+
+    /**
+     * binary search for the first flag on or after a row, relies on the row order guarantee
+     * @param row the row to find
+     * @return the index of the first flag with a row >= row, or size if there is none
+     */
+    public int firstIndexAtRow(int row) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (rows[mid] < row) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+}
@@ -1,7 +1,5 @@
 package ManhattanDistance;
 
-import java.util.ArrayList;
-
 /**
  * holds results of the array parse
  * we need to track
@@ -9,11 +7,11 @@ import java.util.ArrayList;
  * the dense search is more optimal with a two dimensional array
  * the sparse search would be more optimal with a list of points
  * but the difference is negligible
+ * flags are held in a FlagList of primitive arrays, sorted by row
  */
 public class FlagValues {
-    public record GridCoordinate(int row, int col) {}
     public enum Density{ DENSE, SPARSE, TEST};
-    public ArrayList<GridCoordinate> flags;
+    public final FlagList flags;
     public int flagCount;
     public final int rowCount;
     public final int colCount;
@@ -29,22 +27,35 @@ public class FlagValues {
      */
     public FlagValues(int rowCount, int colCount, String densityParam,
                       int distanceThreshold) {
-        this.flags = new ArrayList<GridCoordinate>();
+        this(rowCount, colCount, densityParam, distanceThreshold, new FlagList());
+    }
+
+    /**
+     * constructor for readers that collect flags before the grid dimensions are known
+     * @param rowCount - input array row count
+     * @param colCount - input array column count
+     * @param densityParam - whether the data should be considered dense, sparse, or we test
+     * @param distanceThreshold - the number of steps to walk from flagged values
+     * @param flags - coordinates of flagged values in row order, taken over without copying
+     */
+    public FlagValues(int rowCount, int colCount, String densityParam,
+                      int distanceThreshold, FlagList flags) {
+        this.flags = flags;
         this.density = densityParam.equals("sparse") ? Density.SPARSE :
                 densityParam.equals("dense") ? Density.DENSE : Density.TEST;
-        this.flagCount = 0;
+        this.flagCount = flags.size();
         this.colCount = colCount;
         this.rowCount = rowCount;
         this.distanceThreshold = distanceThreshold;
     }
 
     /**
-     * adds a point to our list of grid coordinates
+     * adds a point to our list of grid coordinates, points must be added in row order
      * @param row
      * @param col
      */
     public void addPoint(int row, int col) {
-        flags.add(new GridCoordinate(row, col));
+        flags.add(row, col);
         flagCount++;
     }
 }
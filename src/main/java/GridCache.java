@@ -0,0 +1,297 @@
+package ManhattanDistance;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * an on-disk cache of grids keyed by a SHA-256 hash of the bytes of their data array,
+ * so a grid read before is neither parsed nor counted again, whatever its distanceThreshold
+ * an entry holds the flags and the neighbor count at every distanceThreshold up to the largest distance
+ * on the grid, tallied once from the flags indexed by column, so any distanceThreshold is answered by one lookup
+ * entries are files named by their hash, a hit touches the file, and once the files are over
+ * the size limit the least recently used are deleted
+ *
+ * an entry is little endian: int MAGIC, int rowCount, int colCount, int flagCount, int countsLength,
+ * long counts[countsLength] where counts[d] is the neighbor count at distanceThreshold d,
+ * then int rows[flagCount] and int cols[flagCount] of the flags in row order
+ */
+class GridCache {
+    private static Logger logger = LoggerFactory.getLogger(GridCache.class);
+    public static final String DEFAULT_DIR = "neighbors-cache";
+    public static final long DEFAULT_MAX_MB = 256;
+    private static final int MAGIC = 0x4E424331;
+    private static final int HEADER_BYTES = 5 * Integer.BYTES;
+    private static final String SUFFIX = ".grid";
+    private static final int HASH_SLICE_BYTES = 1 << 30;
+    private static final int IO_BUFFER_BYTES = 1 << 20;
+
+    /**
+     * a cached grid
+     * @param file the entry file
+     * @param distanceThreshold the distanceThreshold of the document looked up, -1 if it has none
+     * @param densityParam the density of the document looked up
+     * @param rowCount grid row count
+     * @param colCount grid column count
+     * @param flagCount the number of flags
+     * @param counts neighbor counts indexed by distanceThreshold, up to the largest distance on the grid
+     * @param flags the flags when the entry was just made, null when they are still on disk
+     * @param hit whether the grid was already cached
+     */
+    public record Entry(Path file, int distanceThreshold, String densityParam, int rowCount, int colCount,
+                        int flagCount, long[] counts, FlagList flags, boolean hit) {
+        /**
+         * @param threshold a distanceThreshold >= 0
+         * @return count of cells within threshold of a flag
+         */
+        public long count(int threshold) {
+            return counts.length == 0 ? 0 : counts[Math.min(threshold, counts.length - 1)];
+        }
+    }
+
+    private final Path dir;
+    private final long maxBytes;
+
+    /**
+     * @param dir the directory holding the entries, created on first use
+     * @param maxBytes the size the entries are kept under
+     */
+    GridCache(Path dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * finds a grid file in the cache, or reads and tallies it and adds it
+     * adding loads the whole grid's flags, so a caller bounding memory only looks up what is there
+     * @param file the json file
+     * @param parseThreads the threads reading the file from a memory mapping on a miss, 0 to use GridReader
+     * @param add whether to read and add the grid on a miss
+     * @return the entry, null on a miss when add is false or if the data array could not be found
+     *         without GridReader
+     * @throws IOException if the file cannot be read or the entry cannot be written
+     */
+    @SuppressWarnings("try")
+    public Entry lookup(Path file, int parseThreads, boolean add) throws IOException {
+        try (Metrics.Phase phase = Metrics.phase("cache")) {
+            MappedGridReader.Fields fields;
+            String key;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                 Arena arena = Arena.ofConfined()) {
+                MemorySegment segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+                fields = MappedGridReader.locate(segment);
+                if (fields == null || fields.dataStart() < 0) return null;
+                key = hash(segment, fields.dataStart(), fields.dataEnd());
+            }
+            Files.createDirectories(dir);
+            Path entryFile = dir.resolve(key + SUFFIX);
+            Entry entry = Files.exists(entryFile) ? read(entryFile, fields) : null;
+            if (entry != null) {
+                Files.setLastModifiedTime(entryFile, FileTime.fromMillis(System.currentTimeMillis()));
+                logger.info("cache hit " + entryFile);
+                return entry;
+            }
+            logger.info("cache miss " + entryFile);
+            if (!add) return null;
+            FlagValues flagData = Neighbors.parseFile(file, parseThreads);
+            long[] counts = ScanStreaming.thresholdCounts(flagData,
+                    Math.max(0, flagData.rowCount + flagData.colCount - 2));
+            write(entryFile, flagData, counts);
+            evict(entryFile);
+            return new Entry(entryFile, fields.distanceThreshold(), fields.densityParam(), flagData.rowCount,
+                    flagData.colCount, flagData.flags.size(), counts, flagData.flags, false);
+        }
+    }
+
+    /**
+     * the flags of an entry, read from its file unless the entry was just made
+     * @param entry a cached grid
+     * @param distanceThreshold the distanceThreshold of the returned flag values
+     * @return grid dimensions, flags, density and distanceThreshold
+     * @throws IOException if the entry cannot be read
+     */
+    public FlagValues flagValues(Entry entry, int distanceThreshold) throws IOException {
+        FlagList flags = entry.flags();
+        if (flags == null) {
+            int[] rows = new int[entry.flagCount()];
+            int[] cols = new int[entry.flagCount()];
+            try (FileChannel channel = FileChannel.open(entry.file(), StandardOpenOption.READ)) {
+                channel.position(HEADER_BYTES + (long) entry.counts().length * Long.BYTES);
+                readInts(channel, rows);
+                readInts(channel, cols);
+            }
+            flags = new FlagList(rows, cols, entry.flagCount());
+        }
+        return new FlagValues(entry.rowCount(), entry.colCount(), entry.densityParam(), distanceThreshold, flags);
+    }
+
+    /**
+     * @param segment the mapped document
+     * @param start the offset of the data array
+     * @param end the offset after the data array
+     * @return the SHA-256 of the data array bytes in hex
+     */
+    private static String hash(MemorySegment segment, long start, long end) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("every JVM provides SHA-256", e);
+        }
+        for (long pos = start; pos < end; pos += HASH_SLICE_BYTES) {
+            digest.update(segment.asSlice(pos, Math.min(HASH_SLICE_BYTES, end - pos)).asByteBuffer());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * reads the counts of an entry, the flags are read only when asked for
+     * @param entryFile the entry
+     * @param fields the fields of the document looked up
+     * @return the entry, null if the file is not a whole entry
+     */
+    private static Entry read(Path entryFile, MappedGridReader.Fields fields) {
+        try (FileChannel channel = FileChannel.open(entryFile, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0) {}
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) return null;
+            int rowCount = header.getInt();
+            int colCount = header.getInt();
+            int flagCount = header.getInt();
+            int countsLength = header.getInt();
+            if (channel.size() != HEADER_BYTES + (long) countsLength * Long.BYTES + 2L * flagCount * Integer.BYTES) {
+                return null;
+            }
+            ByteBuffer countBytes = ByteBuffer.allocate(countsLength * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (countBytes.hasRemaining() && channel.read(countBytes) >= 0) {}
+            long[] counts = new long[countsLength];
+            countBytes.flip().asLongBuffer().get(counts);
+            return new Entry(entryFile, fields.distanceThreshold(), fields.densityParam(), rowCount, colCount,
+                    flagCount, counts, null, true);
+        } catch (IOException e) {
+            logger.warn("cache entry " + entryFile + " unreadable, replacing it: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * writes an entry to a scratch file and moves it into place, so a reader never sees part of one
+     * @param entryFile the entry
+     * @param flagData the grid dimensions and flags
+     * @param counts neighbor counts indexed by distanceThreshold
+     * @throws IOException if the entry cannot be written
+     */
+    private void write(Path entryFile, FlagValues flagData, long[] counts) throws IOException {
+        Path scratch = Files.createTempFile(dir, "entry", ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(scratch, StandardOpenOption.WRITE)) {
+                ByteBuffer head = ByteBuffer.allocate(HEADER_BYTES + counts.length * Long.BYTES)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                head.putInt(MAGIC).putInt(flagData.rowCount).putInt(flagData.colCount)
+                        .putInt(flagData.flags.size()).putInt(counts.length);
+                head.asLongBuffer().put(counts);
+                head.position(head.limit()).flip();
+                while (head.hasRemaining()) channel.write(head);
+                writeInts(channel, flagData.flags, true);
+                writeInts(channel, flagData.flags, false);
+            }
+            Files.move(scratch, entryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(scratch);
+        }
+    }
+
+    /**
+     * writes the rows or the columns of every flag through one direct buffer
+     * @param channel the entry being written
+     * @param flags the flags
+     * @param rows true to write the rows, false the columns
+     * @throws IOException if the entry cannot be written
+     */
+    private static void writeInts(FileChannel channel, FlagList flags, boolean rows) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < flags.size(); i++) {
+            if (!buffer.hasRemaining()) {
+                buffer.flip();
+                while (buffer.hasRemaining()) channel.write(buffer);
+                buffer.clear();
+            }
+            buffer.putInt(rows ? flags.row(i) : flags.col(i));
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    /**
+     * fills an array with ints read through one direct buffer
+     * @param channel the entry positioned at the ints
+     * @param values the array filled
+     * @throws IOException if the entry cannot be read or ends early
+     */
+    private static void readInts(FileChannel channel, int[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        int filled = 0;
+        while (filled < values.length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), (long) (values.length - filled) * Integer.BYTES));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) throw new IOException("cache entry ends early");
+            }
+            IntBuffer ints = buffer.flip().asIntBuffer();
+            int count = ints.remaining();
+            ints.get(values, filled, count);
+            filled += count;
+        }
+    }
+
+    /**
+     * deletes the least recently used entries until the entries fit in maxBytes
+     * @param keep the entry just written, only deleted when it alone is over the limit
+     * @throws IOException if the directory cannot be listed
+     */
+    private void evict(Path keep) throws IOException {
+        record Cached(Path file, long bytes, FileTime used) {}
+        ArrayList<Cached> entries = new ArrayList<>();
+        long totalBytes = 0;
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(path -> path.toString().endsWith(SUFFIX)).toList();
+        }
+        for (Path file : files) {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            entries.add(new Cached(file, attributes.size(), attributes.lastModifiedTime()));
+            totalBytes += attributes.size();
+        }
+        entries.sort(Comparator.comparing(Cached::used));
+        for (Cached entry : entries) {
+            if (totalBytes <= maxBytes) break;
+            if (entry.file().equals(keep)) continue;
+            Files.deleteIfExists(entry.file());
+            totalBytes -= entry.bytes();
+            logger.info("cache evicted " + entry.file());
+        }
+        if (totalBytes > maxBytes) {
+            Files.deleteIfExists(keep);
+            logger.warn("cache entry " + keep + " is larger than the cache, not kept");
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package ManhattanDistance;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * builds random grids in process for benchmarks and calibration rather than reading JSON files
+ * flags are placed the way gen_grid2.py places positive values,
+ * an exact count of distinct random cells for the requested percentage
+ */
+class GridGenerator {
+    private static final long SEED = 42;
+
+    /**
+     * generates a grid of random flags
+     * @param rows grid row count
+     * @param cols grid column count
+     * @param percentage percentage of cells that are flagged, 0 - 100
+     * @param distanceThreshold the number of steps to walk from flagged values
+     * @return FlagValues with the flags in row order as GridReader produces them
+     */
+    public static FlagValues generate(int rows, int cols, double percentage, int distanceThreshold) {
+        BitSet chosen = chooseCells(rows, cols, percentage);
+        FlagValues flagData = new FlagValues(rows, cols, "test", distanceThreshold);
+        for (int index = chosen.nextSetBit(0); index >= 0; index = chosen.nextSetBit(index + 1)) {
+            flagData.addPoint(index / cols, index % cols);
+        }
+        return flagData;
+    }
+
+    /**
+     * generates the JSON text of a grid in the gen_grid2.py layout, one row per line,
+     * positive values between 1 and 10 and -1 elsewhere
+     * @param rows grid row count
+     * @param cols grid column count
+     * @param percentage percentage of cells that are positive, 0 - 100
+     * @param distanceThreshold the distanceThreshold field of the document
+     * @return the JSON document
+     */
+    public static String generateJson(int rows, int cols, double percentage, int distanceThreshold) {
+        BitSet chosen = chooseCells(rows, cols, percentage);
+        Random random = new Random(SEED);
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"distanceThreshold\":").append(distanceThreshold).append(",\n  \"data\": [\n");
+        for (int row = 0; row < rows; row++) {
+            sb.append("    [");
+            for (int col = 0; col < cols; col++) {
+                if (col > 0) sb.append(", ");
+                sb.append(chosen.get(row * cols + col) ? 1 + random.nextInt(10) : -1);
+            }
+            sb.append(row < rows - 1 ? "],\n" : "]\n");
+        }
+        sb.append("  ]\n}");
+        return sb.toString();
+    }
+
+    /**
+     * picks an exact count of distinct random cells
+     * @param rows grid row count
+     * @param cols grid column count
+     * @param percentage percentage of cells to pick, 0 - 100
+     * @return a bit per cell in row order, set for picked cells
+     */
+    private static BitSet chooseCells(int rows, int cols, double percentage) {
+        long totalCells = (long) rows * cols;
+        long flagCount = (long) (totalCells * (percentage / 100.0));
+        Random random = new Random(SEED);
+        BitSet chosen = new BitSet((int) totalCells);
+        long chosenCount = 0;
+        while (chosenCount < flagCount) {
+            int index = (int) (random.nextDouble() * totalCells);
+            if (!chosen.get(index)) {
+                chosen.set(index);
+                chosenCount++;
+            }
+        }
+        return chosen;
+    }
+}
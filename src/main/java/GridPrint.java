@@ -24,4 +24,23 @@ class GridPrint {
         }
         return sb.toString();
     }
+
+    /**
+     * prints a NeighborGrid to a string as integers for visualization
+     *
+     * @param neighbors the grid
+     * @return a string of integers with lines = row count, each lines length = col count
+     * */
+    public static String printArray(NeighborGrid neighbors) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n");
+
+        for (int row = 0; row < neighbors.rowCount; row++) {
+            for (int col = 0; col < neighbors.colCount; col++) {
+                sb.append (neighbors.get(neighbors.index(row, col)));
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
 }
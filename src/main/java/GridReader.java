@@ -1,22 +1,27 @@
 package ManhattanDistance;
 
+import java.io.Reader;
 import java.io.StringReader;
+import java.util.Arrays;
 import javax.json.Json;
-import javax.json.JsonArray;
-import javax.json.JsonObject;
-import javax.json.JsonReader;
+import javax.json.stream.JsonParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * reads JsonArray input into FlagValues translating positive values into flags
+ * reads Json input into FlagValues translating positive values into flags
+ * the input is streamed, the document is never held in memory as a string or a tree
  */
 class GridReader {
     private static Logger logger = LoggerFactory.getLogger(GridReader.class);
     private static final String FIELD_DISTANCE_THRESHOLD = "distanceThreshold";
     private static final String FIELD_DENSITY = "density";
     private static final String FIELD_DATA = "data";
-    private static final double DENSITY_TUNE_FACTOR = 5.0;
+
+    /**
+     * tracks the grid dimensions found while streaming the data array
+     */
+    private record GridDimensions(int rowCount, int colCount) {}
 
     /**
      * reads jsonData string finding positive values and adding those coordinates
@@ -26,45 +31,262 @@ class GridReader {
      *  density, and distanceThreshold
      */
     public static FlagValues parseJsonNeighborData(String jsonData) {
-        JsonReader jsonReader = Json.createReader(new StringReader(jsonData));
-        JsonObject jsonObject = jsonReader.readObject();
-        jsonReader.close();
-        int distanceThreshold = jsonObject.getInt(FIELD_DISTANCE_THRESHOLD, -1);
-        String densityParam = jsonObject.getString(FIELD_DENSITY, "test");
-        JsonArray dataArray = jsonObject.getJsonArray(FIELD_DATA);
+        return parseJsonNeighborData(new StringReader(jsonData));
+    }
+
+    /**
+     * reads json from a reader in a single forward pass finding positive values
+     * and adding those coordinates into a FlagValues object
+     * distanceThreshold, density and data may appear in any order, other fields are skipped
+     * @param jsonReader the source of the json document, closed when parsing completes
+     * @return a FlagValues object with grid dimensions, flag coordinates,
+     *  density, and distanceThreshold
+     */
+    @SuppressWarnings("try")
+    public static FlagValues parseJsonNeighborData(Reader jsonReader) {
+        try (Metrics.Phase phase = Metrics.phase("parse")) {
+            return parseFlags(jsonReader);
+        }
+    }
+
+    /**
+     * parseJsonNeighborData without the timing
+     * @param jsonReader the source of the json document, closed when parsing completes
+     * @return a FlagValues object with grid dimensions, flag coordinates,
+     *  density, and distanceThreshold
+     */
+    private static FlagValues parseFlags(Reader jsonReader) {
+        int distanceThreshold = -1;
+        String densityParam = "test";
+        FlagList flags = new FlagList();
+        GridDimensions dimensions = new GridDimensions(0, 0);
+        try (JsonParser parser = Json.createParser(jsonReader)) {
+            if (!parser.hasNext() || parser.next() != JsonParser.Event.START_OBJECT) {
+                return new FlagValues(0, 0, densityParam, distanceThreshold);
+            }
+            while (parser.hasNext()) {
+                JsonParser.Event event = parser.next();
+                if (event == JsonParser.Event.END_OBJECT) break;
+                String key = parser.getString();
+                event = parser.next();
+                if (key.equals(FIELD_DISTANCE_THRESHOLD) && event == JsonParser.Event.VALUE_NUMBER) {
+                    distanceThreshold = parser.getInt();
+                } else if (key.equals(FIELD_DENSITY) && event == JsonParser.Event.VALUE_STRING) {
+                    densityParam = parser.getString();
+                } else if (key.equals(FIELD_DATA) && event == JsonParser.Event.START_ARRAY) {
+                    dimensions = parseJsonArray(parser, flags);
+                } else if (event == JsonParser.Event.START_OBJECT) {
+                    parser.skipObject();
+                } else if (event == JsonParser.Event.START_ARRAY) {
+                    parser.skipArray();
+                }
+            }
+        }
         logger.info("distance threshold: " + distanceThreshold);
-        if (dataArray.size()==0) return new FlagValues(0,0,densityParam, distanceThreshold);
+        return new FlagValues(dimensions.rowCount, dimensions.colCount, densityParam,
+                distanceThreshold, flags);
+    }
+
+    /**
+     * receives the data array one row at a time from streamJsonNeighborData
+     * rows arrive in increasing order, a row without flags may be skipped
+     */
+    interface RowHandler {
+        /**
+         * called once before the first row
+         * @param distanceThreshold the distanceThreshold of the document, -1 if it has none
+         * @param colCount the length of the first row
+         */
+        void start(int distanceThreshold, int colCount);
+
+        /**
+         * @param row the row index
+         * @param flagCols the columns of positive values in column order, only valid during the call
+         * @param flagCount the number of entries of flagCols in use
+         */
+        void row(int row, int[] flagCols, int flagCount);
+
+        /**
+         * called once after the last row
+         * @param rowCount the number of rows in the data array
+         */
+        void end(int rowCount);
+    }
+
+    /**
+     * reads json from a reader passing each row of the data array to a handler as soon as it is read
+     * no flag list is built, so memory does not grow with the number of rows
+     * when distanceThreshold follows the data array the rows have to be buffered
+     * as a FlagList and are passed to the handler once the document is read
+     * @param jsonReader the source of the json document, closed when parsing completes
+     * @param handler receives the distanceThreshold, the column count and every row
+     */
+    public static void streamJsonNeighborData(Reader jsonReader, RowHandler handler) {
+        streamJsonNeighborData(jsonReader, -1, handler);
+    }
 
-        return parseJsonArray(dataArray, densityParam, distanceThreshold);
+    /**
+     * streams the data array with a distanceThreshold chosen by the caller,
+     * the document's distanceThreshold is ignored so the rows never have to be buffered
+     * @param jsonReader the source of the json document, closed when parsing completes
+     * @param distanceThreshold passed to the handler in place of the document's, -1 to use the document's
+     * @param handler receives the distanceThreshold, the column count and every row
+     */
+    public static void streamJsonNeighborData(Reader jsonReader, int distanceThreshold, RowHandler handler) {
+        boolean thresholdGiven = distanceThreshold >= 0;
+        FlagList bufferedFlags = new FlagList();
+        GridDimensions dimensions = new GridDimensions(0, 0);
+        try (JsonParser parser = Json.createParser(jsonReader)) {
+            if (parser.hasNext() && parser.next() == JsonParser.Event.START_OBJECT) {
+                while (parser.hasNext()) {
+                    JsonParser.Event event = parser.next();
+                    if (event == JsonParser.Event.END_OBJECT) break;
+                    String key = parser.getString();
+                    event = parser.next();
+                    if (key.equals(FIELD_DISTANCE_THRESHOLD) && event == JsonParser.Event.VALUE_NUMBER) {
+                        if (!thresholdGiven) distanceThreshold = parser.getInt();
+                    } else if (key.equals(FIELD_DATA) && event == JsonParser.Event.START_ARRAY) {
+                        if (distanceThreshold >= 0) {
+                            streamJsonArray(parser, distanceThreshold, handler);
+                            return;
+                        }
+                        logger.warn("distanceThreshold follows the data array, buffering flags");
+                        dimensions = parseJsonArray(parser, bufferedFlags);
+                    } else if (event == JsonParser.Event.START_OBJECT) {
+                        parser.skipObject();
+                    } else if (event == JsonParser.Event.START_ARRAY) {
+                        parser.skipArray();
+                    }
+                }
+            }
+        }
+        replayFlags(bufferedFlags, dimensions.rowCount, dimensions.colCount, distanceThreshold, handler);
     }
+
     /**
-     * parses JsonArray into FlagValues
-     * Assumes the array is not jagged
+     * passes flags already collected in a FlagList to a handler row by row
+     * @param flags flag coordinates in row order
+     * @param rowCount grid row count
+     * @param colCount grid column count
+     * @param distanceThreshold passed to the handler start
+     * @param handler receives every row that has flags
+     */
+    static void replayFlags(FlagList flags, int rowCount, int colCount, int distanceThreshold,
+                            RowHandler handler) {
+        handler.start(distanceThreshold, colCount);
+        int[] flagCols = new int[16];
+        int flagCount = 0;
+        for (FlagList.Cursor flag = flags.cursor(); flag.next(); ) {
+            if (flagCount > 0 && flag.row() != flags.row(flag.index() - 1)) {
+                handler.row(flags.row(flag.index() - 1), flagCols, flagCount);
+                flagCount = 0;
+            }
+            if (flagCount == flagCols.length) flagCols = Arrays.copyOf(flagCols, flagCount * 2);
+            flagCols[flagCount++] = flag.col();
+        }
+        if (flagCount > 0) handler.row(flags.row(flags.size() - 1), flagCols, flagCount);
+        handler.end(rowCount);
+    }
+
+    /**
+     * streams the two-dimensional data array adding positive value coordinates to flags
+     * as each row is read
+     * @param parser a parser positioned just after the start of the data array
+     * @param flags list receiving flagged coordinates in row order
+     * @return the row and column count of the data array
+     * */
+    private static GridDimensions parseJsonArray(JsonParser parser,
+                                                 FlagList flags) {
+        return streamJsonArray(parser, -1, new RowHandler() {
+            @Override
+            public void start(int distanceThreshold, int colCount) {}
+
+            @Override
+            public void row(int row, int[] flagCols, int flagCount) {
+                for (int i = 0; i < flagCount; i++) {
+                    flags.add(row, flagCols[i]);
+                }
+            }
+
+            @Override
+            public void end(int rowCount) {}
+        });
+    }
+
+    /**
+     * streams the two-dimensional data array passing the positive value columns
+     * of each row to a handler as the row ends
+     * Assumes the array is not jagged, the first row determines the column count
+     * and values past it in later rows are ignored
      * handles both floating point and integer values
-     * adds positive value coordinates to a FlagValues object
-     * @param jsonArray the input two-dimensional JsonArray
-     * @param densityParam treat data as dense (many flags), sparse, or test
-     * @param distanceThreshold the amount to walk to find neighbors
-     * @return a FlagValues object that contains flagged value positions, density, distanceThreshold
+     * @param parser a parser positioned just after the start of the data array
+     * @param distanceThreshold passed to the handler start
+     * @param handler receives the column count once the first row is read, then every row
+     * @return the row and column count of the data array
      * */
-    private static FlagValues parseJsonArray(JsonArray jsonArray,
-                                             String densityParam, int distanceThreshold) {
-        int rows = jsonArray.size();
-        int cols = jsonArray.getJsonArray(0).size();
-        FlagValues flagValues = new FlagValues(rows, cols, densityParam, distanceThreshold);
-
-        logger.debug("input data:\n" + jsonArray.toString().replaceAll("],", "],\n"));
-        StringBuilder sb = new StringBuilder();
-        logger.info("parsing JSON array with rows "+ flagValues.rowCount + " cols " + flagValues.colCount);
-        for (int row = 0; row < flagValues.rowCount; row++) {
-            JsonArray rowData = jsonArray.getJsonArray(row);
-            for (int col = 0; col < flagValues.colCount; col++) {
-                if (rowData.getJsonNumber(col).doubleValue()>0) {
-                    flagValues.addPoint(row, col);
+    private static GridDimensions streamJsonArray(JsonParser parser, int distanceThreshold,
+                                                  RowHandler handler) {
+        int row = 0;
+        int col = 0;
+        int colCount = 0;
+        int depth = 1;
+        int[] flagCols = new int[16];
+        int flagCount = 0;
+        while (depth > 0 && parser.hasNext()) {
+            switch (parser.next()) {
+                case START_ARRAY -> {
+                    if (depth == 1) {
+                        depth++;
+                        col = 0;
+                    } else {
+                        parser.skipArray();
+                        col++;
+                    }
                 }
+                case END_ARRAY -> {
+                    if (--depth == 1) {
+                        if (row == 0) {
+                            colCount = col;
+                            handler.start(distanceThreshold, colCount);
+                        }
+                        handler.row(row, flagCols, flagCount);
+                        flagCount = 0;
+                        row++;
+                    }
+                }
+                case START_OBJECT -> {
+                    parser.skipObject();
+                    col++;
+                }
+                case VALUE_NUMBER -> {
+                    if ((row == 0 || col < colCount) && isPositive(parser.getString())) {
+                        if (flagCount == flagCols.length) flagCols = Arrays.copyOf(flagCols, flagCount * 2);
+                        flagCols[flagCount++] = col;
+                    }
+                    col++;
+                }
+                default -> col++;
             }
         }
-        return flagValues;
+        if (row == 0) handler.start(distanceThreshold, 0);
+        handler.end(row);
+        logger.info("parsed JSON array with rows " + row + " cols " + colCount);
+        return new GridDimensions(row, colCount);
     }
 
+    /**
+     * checks the sign of a json number from its text without converting it
+     * a json number is positive when it has no leading minus and a non zero digit before any exponent
+     * @param number the json number text
+     * @return whether the number is greater than zero
+     */
+    private static boolean isPositive(String number) {
+        if (number.isEmpty() || number.charAt(0) == '-') return false;
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c == 'e' || c == 'E') return false;
+            if (c >= '1' && c <= '9') return true;
+        }
+        return false;
+    }
 }
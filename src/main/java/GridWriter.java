@@ -0,0 +1,223 @@
+package ManhattanDistance;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * writes the cells a count covered to a binary file rather than only counting them
+ * rows are written as the engines finish them, from the multi-pass scan grid, from each -mem_saver chunk
+ * or from the streaming window, into a direct buffer that goes to a FileChannel each time it fills,
+ * so no cell is ever turned into text and only one buffer is held whatever the grid size
+ *
+ * the file starts with a 16 byte header, every value in the file is little endian:
+ * int rowCount, int colCount, int distanceThreshold, byte format (0 bits, 1 runs, 2 distance),
+ * byte cellBytes and two bytes of padding, followed by the rows in order
+ * bits: each row is (colCount + 7) / 8 bytes, column c is bit c % 8 of byte c / 8, set when covered
+ * runs: each row is an int count of runs of covered cells, then an int start column and int length per run
+ * distance: each row is colCount unsigned cells of cellBytes bytes, the distance to the nearest flag,
+ * or all bits set when no flag is within distanceThreshold
+ */
+class GridWriter implements AutoCloseable {
+    private static Logger logger = LoggerFactory.getLogger(GridWriter.class);
+    private static final int HEADER_BYTES = 16;
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    /**
+     * how each row is written
+     */
+    public enum Format {
+        BITS("bits"),
+        RUNS("runs"),
+        DISTANCE("distance");
+
+        public final String argName;
+
+        Format(String argName) {
+            this.argName = argName;
+        }
+
+        /**
+         * @return the command line names of the formats separated by commas
+         */
+        public static String argNames() {
+            StringBuilder sb = new StringBuilder();
+            for (Format format : values()) {
+                if (sb.length() > 0) sb.append(", ");
+                sb.append(format.argName);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * @param argName the name passed on the command line
+         * @return the matching format or null if there is none
+         */
+        public static Format fromArgName(String argName) {
+            for (Format format : values()) {
+                if (format.argName.equals(argName)) return format;
+            }
+            return null;
+        }
+    }
+
+    private final Path path;
+    private final Format format;
+    private final FileChannel channel;
+    private ByteBuffer buffer;
+    private int colCount;
+    private int distanceThreshold;
+    private int cellBytes;
+    private int maxRowBytes;
+    /** distances along the grid row being written */
+    private int[] rowDistances;
+    private int rowsWritten;
+
+    /**
+     * creates or truncates the file, rows can be written once start is called
+     * @param path the file written
+     * @param format how each row is written
+     * @throws IOException if the file cannot be opened
+     */
+    GridWriter(Path path, Format format) throws IOException {
+        this.path = path;
+        this.format = format;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        channel.position(HEADER_BYTES);
+    }
+
+    /**
+     * called once before the first row, distance cells are the narrowest that hold distanceThreshold
+     * with a value left over for cells no flag reaches
+     * @param colCount the length of every row
+     * @param distanceThreshold cells further than this from every flag are not covered
+     * @throws IllegalArgumentException if one row is too long for a buffer
+     */
+    public void start(int colCount, int distanceThreshold) {
+        this.colCount = colCount;
+        this.distanceThreshold = distanceThreshold;
+        this.cellBytes = distanceThreshold < 0xFF ? 1 : distanceThreshold < 0xFFFF ? 2 : 4;
+        long rowBytes = switch (format) {
+            case BITS -> (colCount + 7L) / 8;
+            case RUNS -> Integer.BYTES + 2L * Integer.BYTES * ((colCount + 1L) / 2);
+            case DISTANCE -> (long) colCount * cellBytes;
+        };
+        if (rowBytes > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("rows of " + colCount + " columns are too long to buffer");
+        }
+        this.maxRowBytes = (int) rowBytes;
+        this.buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_BYTES, maxRowBytes)).order(ByteOrder.LITTLE_ENDIAN);
+        this.rowDistances = new int[colCount];
+        logger.info("writing " + format.argName + " rows to " + path);
+    }
+
+    /**
+     * writes rows of a multi-pass scan grid, where a cell holding v > 0 is distanceThreshold + 1 - v
+     * from its nearest flag and a cell holding 0 is not covered
+     * @param grid the grid holding finished rows
+     * @param startRow the first grid row written
+     * @param endRow the grid row after the last row written
+     */
+    public void writeRows(NeighborGrid grid, int startRow, int endRow) {
+        for (int row = startRow; row < endRow; row++) {
+            long rowStart = grid.index(row, 0);
+            for (int col = 0; col < colCount; col++) {
+                int value = grid.get(rowStart + col);
+                rowDistances[col] = value > 0 ? distanceThreshold + 1 - value : Integer.MAX_VALUE;
+            }
+            writeDistances(rowDistances);
+        }
+    }
+
+    /**
+     * writes a row no flag reaches
+     */
+    public void writeUncoveredRow() {
+        Arrays.fill(rowDistances, Integer.MAX_VALUE);
+        writeDistances(rowDistances);
+    }
+
+    /**
+     * writes the next row
+     * @param distances the distance from each cell of the row to its nearest flag,
+     *                  anything over distanceThreshold is not covered
+     */
+    public void writeDistances(int[] distances) {
+        if (buffer.remaining() < maxRowBytes) flush();
+        switch (format) {
+            case BITS -> {
+                for (int start = 0; start < colCount; start += 8) {
+                    int end = Math.min(colCount, start + 8);
+                    int bits = 0;
+                    for (int col = start; col < end; col++) {
+                        if (distances[col] <= distanceThreshold) bits |= 1 << (col - start);
+                    }
+                    buffer.put((byte) bits);
+                }
+            }
+            case RUNS -> {
+                int countPosition = buffer.position();
+                buffer.putInt(0);
+                int runCount = 0;
+                int col = 0;
+                while (col < colCount) {
+                    if (distances[col] > distanceThreshold) {
+                        col++;
+                        continue;
+                    }
+                    int runStart = col;
+                    while (col < colCount && distances[col] <= distanceThreshold) col++;
+                    buffer.putInt(runStart).putInt(col - runStart);
+                    runCount++;
+                }
+                buffer.putInt(countPosition, runCount);
+            }
+            case DISTANCE -> {
+                for (int col = 0; col < colCount; col++) {
+                    int distance = distances[col] <= distanceThreshold ? distances[col] : -1;
+                    if (cellBytes == 1) buffer.put((byte) distance);
+                    else if (cellBytes == 2) buffer.putShort((short) distance);
+                    else buffer.putInt(distance);
+                }
+            }
+        }
+        rowsWritten++;
+    }
+
+    /**
+     * writes what is buffered to the file
+     */
+    private void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        } catch (IOException e) {
+            throw new UncheckedIOException("writing " + path, e);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * writes the remaining rows and then the header, which holds the row count once every row is known
+     * @throws IOException if the file cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        try (channel) {
+            if (buffer != null) flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(rowsWritten).putInt(colCount).putInt(distanceThreshold)
+                    .put((byte) format.ordinal()).put((byte) cellBytes).rewind();
+            while (header.hasRemaining()) channel.write(header, header.position());
+        }
+        logger.info("wrote " + rowsWritten + " rows to " + path);
+    }
+}
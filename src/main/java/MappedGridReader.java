@@ -0,0 +1,430 @@
+package ManhattanDistance;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * reads a grid file into FlagValues from a memory mapping, scanning the data array on several threads
+ * only the sign of each value matters, so values are never turned into strings or numbers:
+ * a value is positive when it has no leading minus and a non zero digit before any exponent
+ * the data array is split at row boundaries, a ] followed by a , and the [ of the next row,
+ * each range of rows is scanned into its own FlagList and the lists are joined in row order
+ * the data array may only hold numbers, true, false and null, like the files GridGenerator writes,
+ * anything else is read with GridReader instead
+ */
+class MappedGridReader {
+    private static Logger logger = LoggerFactory.getLogger(MappedGridReader.class);
+    /** files smaller than this per thread are not worth splitting further */
+    private static final long MIN_RANGE_BYTES = 1 << 20;
+
+    /**
+     * thrown when the document holds something only GridReader reads
+     */
+    private static final class UnsupportedInput extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedInput(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /**
+     * the rows scanned by one thread
+     * @param flags flagged coordinates, rows counted from the first row of the range
+     * @param rowCount the rows scanned
+     * @param firstRowCols the length of the first row scanned
+     * @param end the offset after the data array when the range reached it, -1 otherwise
+     * @param error why the range could not be scanned, null if it was
+     */
+    private record RangeResult(FlagList flags, int rowCount, int firstRowCols, long end, String error) {}
+
+    /**
+     * the top level fields of a document and where its data array lies
+     * @param distanceThreshold the distanceThreshold, -1 if it has none
+     * @param densityParam the density, test if it has none
+     * @param dataStart the offset of the [ opening the data array, -1 if it has none
+     * @param dataEnd the offset after the data array
+     */
+    record Fields(int distanceThreshold, String densityParam, long dataStart, long dataEnd) {}
+
+    /**
+     * reads a grid file from a memory mapping finding positive values
+     * falls back to GridReader when the data array holds strings, objects or nested arrays
+     * @param file the json file
+     * @param threads the threads scanning the data array
+     * @return a FlagValues object with grid dimensions, flag coordinates,
+     *  density, and distanceThreshold
+     * @throws IOException if the file cannot be read
+     */
+    @SuppressWarnings("try")
+    public static FlagValues parseMappedNeighborData(Path file, int threads) throws IOException {
+        try (Metrics.Phase phase = Metrics.phase("parse", "mapped")) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                 Arena arena = Arena.ofShared()) {
+                MemorySegment segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+                return new MappedGridReader(segment, threads).parse();
+            } catch (UnsupportedInput e) {
+                logger.info("mapped parse not possible, " + e.getMessage() + ", reading with GridReader");
+            }
+        }
+        return GridReader.parseJsonNeighborData(Files.newBufferedReader(file));
+    }
+
+    /**
+     * finds the top level fields of a mapped document, stepping over the data array without reading its rows
+     * @param segment the mapped document
+     * @return the fields, null if the document is only readable by GridReader
+     */
+    static Fields locate(MemorySegment segment) {
+        try {
+            return new MappedGridReader(segment, 1).readFields(null);
+        } catch (UnsupportedInput e) {
+            logger.info("document fields not found, " + e.getMessage());
+            return null;
+        }
+    }
+
+    private final MemorySegment segment;
+    private final long size;
+    private final int threads;
+
+    private MappedGridReader(MemorySegment segment, int threads) {
+        this.segment = segment;
+        this.size = segment.byteSize();
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * reads the top level object, the data array is scanned on the pool when it is reached
+     * @return the flag values
+     */
+    private FlagValues parse() {
+        FlagValues[] data = new FlagValues[1];
+        Fields fields = readFields(data);
+        if (data[0] == null) return new FlagValues(0, 0, fields.densityParam(), fields.distanceThreshold());
+        return new FlagValues(data[0].rowCount, data[0].colCount, fields.densityParam(), fields.distanceThreshold(),
+                data[0].flags);
+    }
+
+    /**
+     * reads the top level object
+     * @param data receives the scanned data array, null to step over the data array
+     * @return the fields of the document
+     */
+    private Fields readFields(FlagValues[] data) {
+        int distanceThreshold = -1;
+        String densityParam = "test";
+        long dataStart = -1;
+        long dataEnd = -1;
+        long pos = skipWhitespace(0);
+        if (pos >= size || byteAt(pos) != '{') return new Fields(distanceThreshold, densityParam, dataStart, dataEnd);
+        pos = skipWhitespace(pos + 1);
+        while (pos < size && byteAt(pos) != '}') {
+            if (byteAt(pos) != '"') throw new UnsupportedInput("expected a key at " + pos);
+            long keyEnd = skipString(pos);
+            String key = new String(segment.asSlice(pos + 1, keyEnd - pos - 2).toArray(ValueLayout.JAVA_BYTE),
+                    StandardCharsets.UTF_8);
+            pos = skipWhitespace(keyEnd);
+            if (pos >= size || byteAt(pos) != ':') throw new UnsupportedInput("expected : at " + pos);
+            pos = skipWhitespace(pos + 1);
+            if (pos >= size) break;
+            byte first = byteAt(pos);
+            long valueEnd;
+            if (key.equals("distanceThreshold") && (first == '-' || isDigit(first))) {
+                valueEnd = skipNumber(pos);
+                distanceThreshold = parseInt(pos, valueEnd);
+            } else if (key.equals("density") && first == '"') {
+                valueEnd = skipString(pos);
+                densityParam = new String(segment.asSlice(pos + 1, valueEnd - pos - 2)
+                        .toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+            } else if (key.equals("data") && first == '[') {
+                if (data != null) {
+                    long[] end = new long[1];
+                    data[0] = parseData(pos, end);
+                    valueEnd = end[0];
+                } else {
+                    valueEnd = skipValue(pos);
+                }
+                dataStart = pos;
+                dataEnd = valueEnd;
+            } else {
+                valueEnd = skipValue(pos);
+            }
+            pos = skipWhitespace(valueEnd);
+            if (pos < size && byteAt(pos) == ',') pos = skipWhitespace(pos + 1);
+        }
+        logger.info("distance threshold: " + distanceThreshold);
+        return new Fields(distanceThreshold, densityParam, dataStart, dataEnd);
+    }
+
+    /**
+     * splits the data array at row boundaries and scans the ranges on a pool
+     * @param start the offset of the [ opening the data array
+     * @param end receives the offset after the data array
+     * @return the rows, columns and flags of the data array, the other fields unset
+     */
+    private FlagValues parseData(long start, long[] end) {
+        long pos = skipWhitespace(start + 1);
+        if (pos < size && byteAt(pos) == ']') {
+            end[0] = pos + 1;
+            return new FlagValues(0, 0, "test", -1);
+        }
+        if (pos >= size || byteAt(pos) != '[') throw new UnsupportedInput("data is not an array of rows");
+        int rangeCount = (int) Math.max(1, Math.min(threads, (size - pos) / MIN_RANGE_BYTES));
+        ArrayList<Long> rangeStarts = new ArrayList<>();
+        rangeStarts.add(pos);
+        for (int i = 1; i < rangeCount; i++) {
+            long rowStart = nextRowStart(Math.max(pos + (size - pos) * i / rangeCount,
+                    rangeStarts.get(rangeStarts.size() - 1) + 1));
+            if (rowStart < 0) break;
+            rangeStarts.add(rowStart);
+        }
+        RangeResult[] results = new RangeResult[rangeStarts.size()];
+        if (results.length == 1) {
+            results[0] = scanRange(pos, size);
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(results.length);
+            try {
+                ArrayList<ForkJoinTask<RangeResult>> tasks = new ArrayList<>();
+                for (int i = 0; i < results.length; i++) {
+                    long rangeStart = rangeStarts.get(i);
+                    long rangeEnd = i + 1 < results.length ? rangeStarts.get(i + 1) : size;
+                    tasks.add(pool.submit(() -> scanRange(rangeStart, rangeEnd)));
+                }
+                for (int i = 0; i < results.length; i++) {
+                    results[i] = tasks.get(i).join();
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+        // ranges after the one reaching the end of the data array split a later field and are dropped
+        int colCount = results[0].firstRowCols;
+        int rowCount = 0;
+        int flagCount = 0;
+        int rangesUsed = 0;
+        while (rangesUsed < results.length) {
+            RangeResult result = results[rangesUsed++];
+            if (result.error != null) throw new UnsupportedInput(result.error);
+            rowCount += result.rowCount;
+            flagCount += result.flags.size();
+            if (result.end >= 0) {
+                end[0] = result.end;
+                break;
+            }
+        }
+        if (results[rangesUsed - 1].end < 0) throw new UnsupportedInput("data array is not closed");
+        FlagList flags = new FlagList(flagCount);
+        int rowOffset = 0;
+        for (int i = 0; i < rangesUsed; i++) {
+            flags.append(results[i].flags, rowOffset, colCount);
+            rowOffset += results[i].rowCount;
+        }
+        logger.info("parsed mapped JSON array with rows " + rowCount + " cols " + colCount +
+                " in ranges " + rangesUsed);
+        return new FlagValues(rowCount, colCount, "test", -1, flags);
+    }
+
+    /**
+     * finds the first row boundary at or after an offset
+     * @param from the offset to search from
+     * @return the offset of the [ starting the row after a ] and a , or -1 if there is none
+     */
+    private long nextRowStart(long from) {
+        for (long pos = from; pos < size; pos++) {
+            if (byteAt(pos) != ']') continue;
+            long comma = skipWhitespace(pos + 1);
+            if (comma >= size || byteAt(comma) != ',') continue;
+            long next = skipWhitespace(comma + 1);
+            if (next < size && byteAt(next) == '[') return next;
+        }
+        return -1;
+    }
+
+    /**
+     * scans the rows starting in a range, stopping at the next range or the end of the data array
+     * every column is kept, the join drops columns past the length of the first row of the data
+     * @param start the offset of the [ of the first row
+     * @param limit the offset of the first row of the next range
+     * @return the flags and row count of the range
+     */
+    private RangeResult scanRange(long start, long limit) {
+        FlagList flags = new FlagList();
+        int row = 0;
+        int firstRowCols = 0;
+        long pos = start;
+        try {
+            while (true) {
+                if (byteAt(pos) != '[') throw new UnsupportedInput("expected a row at " + pos);
+                pos = skipWhitespace(pos + 1);
+                int col = 0;
+                if (pos < size && byteAt(pos) == ']') {
+                    pos++;
+                } else {
+                    while (true) {
+                        if (pos >= size) throw new UnsupportedInput("row not closed");
+                        byte first = byteAt(pos);
+                        if (first == '-' || isDigit(first)) {
+                            long valueEnd = skipNumber(pos);
+                            if (isPositive(pos, valueEnd)) flags.add(row, col);
+                            pos = valueEnd;
+                        } else if (first == 't' || first == 'f' || first == 'n') {
+                            while (pos < size && byteAt(pos) >= 'a' && byteAt(pos) <= 'z') pos++;
+                        } else {
+                            throw new UnsupportedInput("data holds a value other than a number at " + pos);
+                        }
+                        col++;
+                        pos = skipWhitespace(pos);
+                        if (pos >= size) throw new UnsupportedInput("row not closed");
+                        byte next = byteAt(pos++);
+                        if (next == ']') break;
+                        if (next != ',') throw new UnsupportedInput("expected , or ] at " + (pos - 1));
+                        pos = skipWhitespace(pos);
+                    }
+                }
+                if (row == 0) firstRowCols = col;
+                row++;
+                pos = skipWhitespace(pos);
+                if (pos >= size) throw new UnsupportedInput("data array not closed");
+                byte next = byteAt(pos);
+                if (next == ']') return new RangeResult(flags, row, firstRowCols, pos + 1, null);
+                if (next != ',') throw new UnsupportedInput("expected , or ] at " + pos);
+                pos = skipWhitespace(pos + 1);
+                if (pos >= limit) return new RangeResult(flags, row, firstRowCols, -1, null);
+            }
+        } catch (UnsupportedInput e) {
+            return new RangeResult(flags, row, firstRowCols, -1, e.getMessage());
+        }
+    }
+
+    private byte byteAt(long pos) {
+        return segment.get(ValueLayout.JAVA_BYTE, pos);
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * @param pos an offset
+     * @return the offset of the first byte at or after pos that is not json whitespace
+     */
+    private long skipWhitespace(long pos) {
+        while (pos < size) {
+            byte b = byteAt(pos);
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') break;
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * @param pos the offset of a number
+     * @return the offset after it
+     */
+    private long skipNumber(long pos) {
+        while (pos < size) {
+            byte b = byteAt(pos);
+            if (!isDigit(b) && b != '-' && b != '+' && b != '.' && b != 'e' && b != 'E') break;
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * checks the sign of a json number from its bytes, as GridReader.isPositive does from its text
+     * @param start the offset of the number
+     * @param end the offset after it
+     * @return whether the number is greater than zero
+     */
+    private boolean isPositive(long start, long end) {
+        if (byteAt(start) == '-') return false;
+        for (long pos = start; pos < end; pos++) {
+            byte b = byteAt(pos);
+            if (b == 'e' || b == 'E') return false;
+            if (b >= '1' && b <= '9') return true;
+        }
+        return false;
+    }
+
+    /**
+     * reads the integer part of a json number, as JsonParser.getInt does
+     * @param start the offset of the number
+     * @param end the offset after it
+     * @return the value
+     */
+    private int parseInt(long start, long end) {
+        boolean negative = byteAt(start) == '-';
+        long value = 0;
+        for (long pos = negative ? start + 1 : start; pos < end && isDigit(byteAt(pos)); pos++) {
+            value = Math.min(value * 10 + byteAt(pos) - '0', Integer.MAX_VALUE);
+        }
+        if (hasFraction(start, end)) throw new UnsupportedInput("distanceThreshold is not an integer");
+        return (int) (negative ? -value : value);
+    }
+
+    /**
+     * @param start the offset of a number
+     * @param end the offset after it
+     * @return whether it has a fraction or exponent
+     */
+    private boolean hasFraction(long start, long end) {
+        for (long pos = start; pos < end; pos++) {
+            byte b = byteAt(pos);
+            if (b == '.' || b == 'e' || b == 'E') return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param pos the offset of the opening quote of a string
+     * @return the offset after the closing quote
+     */
+    private long skipString(long pos) {
+        pos++;
+        while (pos < size) {
+            byte b = byteAt(pos++);
+            if (b == '\\') pos++;
+            else if (b == '"') return pos;
+        }
+        throw new UnsupportedInput("string not closed");
+    }
+
+    /**
+     * skips a value of a field that is not read
+     * @param pos the offset of the value
+     * @return the offset after it
+     */
+    private long skipValue(long pos) {
+        byte first = byteAt(pos);
+        if (first == '"') return skipString(pos);
+        if (first != '[' && first != '{') {
+            while (pos < size && byteAt(pos) != ',' && byteAt(pos) != '}' && byteAt(pos) != ']') pos++;
+            return pos;
+        }
+        int depth = 0;
+        while (pos < size) {
+            byte b = byteAt(pos);
+            if (b == '"') {
+                pos = skipString(pos);
+                continue;
+            }
+            if (b == '[' || b == '{') depth++;
+            else if ((b == ']' || b == '}') && --depth == 0) return pos + 1;
+            pos++;
+        }
+        throw new UnsupportedInput("value not closed");
+    }
+}
@@ -0,0 +1,200 @@
+package ManhattanDistance;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * timings and counters gathered while grids are read and counted, totalled since the JVM started
+ * every phase is also a JFR event and the counters are committed as one JFR event by commit,
+ * so a run started with -XX:StartFlightRecording shows them in the recording
+ * the engines add to the counters once per flag, pass or chunk, never per cell,
+ * so gathering them costs nothing measurable whether or not anything reads them
+ */
+class Metrics {
+    /** cells the flag fill examined */
+    static final LongAdder cellsVisited = new LongAdder();
+    /** cells the flag fill stepped over because a nearer flag had already marked them */
+    static final LongAdder cellsSkipped = new LongAdder();
+    /** multi-pass scan passes run */
+    static final LongAdder passesRun = new LongAdder();
+    /** multi-pass scan passes not run because every cell was already flagged */
+    static final LongAdder passesSaved = new LongAdder();
+    /** multi-pass scan tiles a pass left alone because nothing near them changed or they were full */
+    static final LongAdder tilesSkipped = new LongAdder();
+    /** the memory of the largest grid allocated */
+    static final LongAccumulator peakGridBytes = new LongAccumulator(Math::max, 0);
+
+    private static final ConcurrentHashMap<String, PhaseTotal> phaseTotals = new ConcurrentHashMap<>();
+
+    /**
+     * the running total of one phase name
+     */
+    private static final class PhaseTotal {
+        final LongAdder count = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    }
+
+    @Name("ManhattanDistance.Phase")
+    @Label("Neighbors Phase")
+    @Category("Neighbors")
+    @Description("one timed step of reading or counting a grid")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Detail")
+        @Description("the engine, pass number or chunk start row, empty when the phase has none")
+        String detail;
+    }
+
+    @Name("ManhattanDistance.Counters")
+    @Label("Neighbors Counters")
+    @Category("Neighbors")
+    @Description("the counters gathered since the JVM started")
+    static class CountersEvent extends Event {
+        @Label("Cells Visited")
+        long cellsVisited;
+
+        @Label("Cells Skipped")
+        long cellsSkipped;
+
+        @Label("Passes Run")
+        long passesRun;
+
+        @Label("Passes Saved")
+        long passesSaved;
+
+        @Label("Tiles Skipped")
+        long tilesSkipped;
+
+        @Label("Peak Grid Bytes")
+        @DataAmount
+        long peakGridBytes;
+    }
+
+    /**
+     * a phase being timed, ended by close so it can be used with try-with-resources
+     */
+    static final class Phase implements AutoCloseable {
+        private final String name;
+        private final PhaseEvent event = new PhaseEvent();
+        private final long startTime = System.nanoTime();
+
+        private Phase(String name, String detail) {
+            this.name = name;
+            event.phase = name;
+            event.detail = detail;
+            event.begin();
+        }
+
+        @Override
+        public void close() {
+            long nanos = System.nanoTime() - startTime;
+            PhaseTotal total = phaseTotals.computeIfAbsent(name, key -> new PhaseTotal());
+            total.count.increment();
+            total.nanos.add(nanos);
+            total.maxNanos.accumulate(nanos);
+            event.commit();
+        }
+    }
+
+    /**
+     * starts timing a phase
+     * @param name the phase, such as parse, select, pass or chunk
+     * @return the phase, close it when the phase ends
+     */
+    public static Phase phase(String name) {
+        return new Phase(name, null);
+    }
+
+    /**
+     * starts timing a phase
+     * @param name the phase, such as parse, select, pass or chunk
+     * @param detail the engine, pass number or chunk start row
+     * @return the phase, close it when the phase ends
+     */
+    public static Phase phase(String name, Object detail) {
+        return new Phase(name, String.valueOf(detail));
+    }
+
+    /**
+     * records the memory of a grid as it is allocated
+     * @param bytes the memory used by the grid cells
+     */
+    public static void gridAllocated(long bytes) {
+        peakGridBytes.accumulate(bytes);
+    }
+
+    /**
+     * commits the counters as a JFR event
+     */
+    public static void commit() {
+        CountersEvent event = new CountersEvent();
+        event.cellsVisited = cellsVisited.sum();
+        event.cellsSkipped = cellsSkipped.sum();
+        event.passesRun = passesRun.sum();
+        event.passesSaved = passesSaved.sum();
+        event.tilesSkipped = tilesSkipped.sum();
+        event.peakGridBytes = peakGridBytes.get();
+        event.commit();
+    }
+
+    /**
+     * @return the phase totals and counters as a json object
+     */
+    public static String toJson() {
+        StringBuilder sb = new StringBuilder("{\"phases\":{");
+        Map<String, PhaseTotal> sorted = new TreeMap<>(phaseTotals);
+        boolean first = true;
+        for (Map.Entry<String, PhaseTotal> entry : sorted.entrySet()) {
+            PhaseTotal total = entry.getValue();
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('"').append(entry.getKey()).append("\":{\"count\":").append(total.count.sum())
+                    .append(",\"totalMillis\":").append(millis(total.nanos.sum()))
+                    .append(",\"maxMillis\":").append(millis(total.maxNanos.get())).append('}');
+        }
+        sb.append("},\"counters\":{\"cellsVisited\":").append(cellsVisited.sum())
+                .append(",\"cellsSkipped\":").append(cellsSkipped.sum())
+                .append(",\"passesRun\":").append(passesRun.sum())
+                .append(",\"passesSaved\":").append(passesSaved.sum())
+                .append(",\"tilesSkipped\":").append(tilesSkipped.sum())
+                .append(",\"peakGridBytes\":").append(peakGridBytes.get()).append("}}");
+        return sb.toString();
+    }
+
+    /**
+     * writes toJson to a file
+     * @param report the file written
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeReport(Path report) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(report)) {
+            writer.write(toJson());
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * @param nanos a duration in nanoseconds
+     * @return the duration in milliseconds to the microsecond
+     */
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0);
+    }
+}
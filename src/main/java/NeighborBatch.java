@@ -0,0 +1,259 @@
+package ManhattanDistance;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * counts many grid files in one JVM, parsing and counting several at once on a bounded pool
+ * a file may only be parsed and counted while its estimated memory fits in a shared budget,
+ * so a few large grids wait for each other instead of running the heap out together
+ * one result line is printed per file in the order the files were given
+ */
+class NeighborBatch {
+    private static Logger logger = LoggerFactory.getLogger(NeighborBatch.class);
+    /** the budget is counted in KiB so any heap fits in the permits of a semaphore */
+    private static final int BUDGET_UNIT = 1024;
+    /** every cell takes at least a digit and a comma or bracket in the file */
+    private static final int MIN_CELL_CHARS = 2;
+    /** a row and a column int per flag, with a half empty list doubling into a new one while parsing */
+    private static final int PARSE_FLAG_BYTES = 6 * Integer.BYTES;
+    /** a row and a column int per flag, with the list up to half empty once parsed */
+    private static final int FLAG_BYTES = 4 * Integer.BYTES;
+    private static final String GLOB_CHARS = "*?[{";
+
+    /**
+     * the outcome of counting one file
+     * @param file the file counted
+     * @param neighborCount count of cells within distanceThreshold of a flag
+     * @param engine the engine that counted it, null if the file could not be counted
+     * @param parseMillis time spent reading the file
+     * @param computeMillis time spent counting, including any -perform_test checks
+     * @param countsMatch false if -perform_test found an engine that disagrees
+     * @param error why the file could not be counted, null if it was
+     */
+    public record Result(Path file, long neighborCount, Engine engine, long parseMillis, long computeMillis,
+                         boolean countsMatch, String error) {
+        @Override
+        public String toString() {
+            if (error != null) return file + " error " + error;
+            return file + " found neighbor count " + neighborCount + " engine " + engine.argName +
+                    " parse ms " + parseMillis + " compute ms " + computeMillis +
+                    (countsMatch ? "" : " counts do not match");
+        }
+    }
+
+    private final NeighborServer.Settings settings;
+    private final boolean performTest;
+    private final boolean mappedParse;
+    private final int jobs;
+    private final long budgetBytes;
+    private final Semaphore budget;
+
+    /**
+     * @param settings the engine settings every file is counted with
+     * @param performTest whether to check each count against every engine
+     * @param mappedParse whether each file is read from a memory mapping, on one thread as files run at once
+     * @param jobs the number of files parsed and counted at once
+     * @param budgetBytes the grid memory the files being counted may use between them
+     */
+    NeighborBatch(NeighborServer.Settings settings, boolean performTest, boolean mappedParse, int jobs,
+                  long budgetBytes) {
+        this.settings = settings;
+        this.performTest = performTest;
+        this.mappedParse = mappedParse;
+        this.jobs = jobs;
+        this.budgetBytes = budgetBytes;
+        this.budget = new Semaphore(permits(budgetBytes));
+    }
+
+    /**
+     * whether the file arguments call for a batch, more than one argument, a directory or a glob
+     * @param fileArgs the arguments that are not -options
+     * @return true when the arguments should be expanded with expand
+     */
+    public static boolean isBatch(List<String> fileArgs) {
+        if (fileArgs.size() > 1) return true;
+        String arg = fileArgs.get(0);
+        return isGlob(arg) || Files.isDirectory(Paths.get(arg));
+    }
+
+    /**
+     * expands the file arguments, a directory gives its json files
+     * and a glob such as data*.json or grids/**.json the files matching it
+     * @param fileArgs file, directory or glob arguments
+     * @return the files in argument order, each directory and glob sorted by name
+     * @throws IOException if a directory cannot be listed
+     */
+    public static List<Path> expand(List<String> fileArgs) throws IOException {
+        ArrayList<Path> files = new ArrayList<>();
+        for (String arg : fileArgs) {
+            if (isGlob(arg)) {
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + arg);
+                try (Stream<Path> walk = Files.walk(globBase(arg))) {
+                    walk.filter(Files::isRegularFile).filter(matcher::matches).sorted().forEach(files::add);
+                }
+            } else if (Files.isDirectory(Paths.get(arg))) {
+                try (Stream<Path> list = Files.list(Paths.get(arg))) {
+                    list.filter(path -> path.toString().endsWith(".json")).filter(Files::isRegularFile)
+                            .sorted().forEach(files::add);
+                }
+            } else {
+                files.add(Paths.get(arg));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @param arg a file argument
+     * @return true if it holds a glob pattern character
+     */
+    private static boolean isGlob(String arg) {
+        for (int i = 0; i < arg.length(); i++) {
+            if (GLOB_CHARS.indexOf(arg.charAt(i)) >= 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * the directory a glob is walked from, the path before the first segment holding a pattern
+     * @param glob the glob argument
+     * @return the directory, the working directory when the first segment has a pattern
+     */
+    private static Path globBase(String glob) {
+        int patternIndex = 0;
+        while (GLOB_CHARS.indexOf(glob.charAt(patternIndex)) < 0) patternIndex++;
+        int separator = glob.lastIndexOf('/', patternIndex);
+        return separator < 0 ? Paths.get("") : Paths.get(glob.substring(0, separator + 1));
+    }
+
+    /**
+     * counts every file, printing each result line as soon as it and the files before it are done
+     * @param files the files to count
+     * @return the results in file order
+     */
+    public List<Result> run(List<Path> files) {
+        logger.info("batch of " + files.size() + " files, jobs " + jobs + " budget bytes " + budgetBytes);
+        ArrayList<Result> results = new ArrayList<>(files.size());
+        ExecutorService pool = Executors.newFixedThreadPool(jobs);
+        try {
+            ArrayList<Future<Result>> futures = new ArrayList<>(files.size());
+            for (Path file : files) {
+                futures.add(pool.submit(() -> count(file)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Result result;
+                try {
+                    result = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    logger.error("counting " + files.get(i) + " failed", e.getCause());
+                    result = new Result(files.get(i), 0, null, 0, 0, true, String.valueOf(e.getCause()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                System.out.println(result);
+                results.add(result);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * waits for the share of the budget the file could need before parsing it,
+     * the most cells and flags its size allows, then keeps the share its grid needs to be counted
+     * @param file the json file
+     * @return the count and timings, or the reason it could not be counted
+     * @throws InterruptedException if interrupted while waiting for the budget
+     */
+    private Result count(Path file) throws InterruptedException {
+        long fileBytes;
+        try {
+            fileBytes = Files.size(file);
+        } catch (IOException e) {
+            return new Result(file, 0, null, 0, 0, true, "reading file: " + e.getMessage());
+        }
+        long maxCells = fileBytes / MIN_CELL_CHARS;
+        // a file over the whole budget takes all of it and runs alone
+        int permits = Math.min(permits(maxCells * (PARSE_FLAG_BYTES + Integer.BYTES)), permits(budgetBytes));
+        budget.acquire(permits);
+        try {
+            long startTime = System.nanoTime();
+            FlagValues flagData;
+            try {
+                flagData = Neighbors.parseFile(file, mappedParse ? 1 : 0);
+            } catch (IOException e) {
+                return new Result(file, 0, null, 0, 0, true, "reading file: " + e.getMessage());
+            }
+            if (flagData.distanceThreshold < 0) {
+                return new Result(file, 0, null, 0, 0, true, "no 'distanceThreshold' integer >=0");
+            }
+            long parseTime = System.nanoTime();
+            long computeStart = System.nanoTime();
+            Engine engine = Neighbors.selectEngine(flagData, settings.denseEngine(), settings.sparseEngine(),
+                    settings.costModel());
+            long bytes = countBytes(flagData, engine);
+            int needed = Math.min(permits(bytes), permits(budgetBytes));
+            if (needed < permits) {
+                budget.release(permits - needed);
+                permits = needed;
+            } else if (needed > permits) {
+                // waiting while holding could deadlock two files that both need more
+                logger.info(file + " needs " + bytes + " bytes to count, more than the " +
+                        (long) permits * BUDGET_UNIT + " held while parsing, waiting for the rest");
+                budget.release(permits);
+                permits = 0;
+                budget.acquire(needed);
+                permits = needed;
+            }
+            long neighborCount = engine.count(flagData, settings.options());
+            // checks run inside the share of the budget this file holds
+            boolean countsMatch = !performTest || Neighbors.countsMatch(flagData, settings.options(), engine,
+                    neighborCount, (long) permits * BUDGET_UNIT);
+            long endTime = System.nanoTime();
+            return new Result(file, neighborCount, engine, (parseTime - startTime) / 1_000_000,
+                    (endTime - computeStart) / 1_000_000, countsMatch, null);
+        } finally {
+            budget.release(permits);
+        }
+    }
+
+    /**
+     * the memory a parsed file holds while it is counted, its flags and the engine's working arrays,
+     * with -perform_test at least an int per cell so the flat engines can check it
+     * @param flagData the parsed grid
+     * @param engine the engine selected to count it
+     * @return estimated bytes
+     */
+    private long countBytes(FlagValues flagData, Engine engine) {
+        long engineBytes = engine.heapBytes(flagData, settings.options());
+        if (performTest) {
+            engineBytes = Math.max(engineBytes, (long) flagData.rowCount * flagData.colCount * Integer.BYTES);
+        }
+        return (long) flagData.flagCount * FLAG_BYTES + engineBytes;
+    }
+
+    /**
+     * @param bytes a memory size
+     * @return the budget permits covering it, at least one
+     */
+    private static int permits(long bytes) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, (bytes + BUDGET_UNIT - 1) / BUDGET_UNIT));
+    }
+}
@@ -0,0 +1,655 @@
+package ManhattanDistance;
+
+import com.sun.management.OperatingSystemMXBean;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * the grid of integer markings used by the engines, stored row after row in one flat array
+ * markings never exceed distanceThreshold + 1, so create picks the narrowest cell type that holds
+ * that value: byte cells for thresholds under 127 use a quarter of the memory of int cells
+ * cells are addressed by index(row, col) so hot loops can step through a row by adding one
+ * grids too large for one array, or for the heap, are a TiledGrid whose tiles are only allocated
+ * once a cell in them is marked, so memory follows the covered area rather than the grid
+ * createOffHeap keeps the cells outside the heap in a SegmentGrid, close releases them
+ */
+abstract class NeighborGrid {
+    public final int rowCount;
+    public final int colCount;
+
+    protected NeighborGrid(int rowCount, int colCount) {
+        this.rowCount = rowCount;
+        this.colCount = colCount;
+    }
+
+    /**
+     * @param maxValue the largest value that will be stored
+     * @return the bytes of the narrowest cell holding maxValue, the width create and createFlat use
+     */
+    public static int cellBytes(int maxValue) {
+        return maxValue <= Byte.MAX_VALUE ? 1 : maxValue <= Short.MAX_VALUE ? 2 : 4;
+    }
+
+    /**
+     * creates a zeroed grid with cells wide enough for maxValue
+     * a grid with more cells than one array holds, or whose flat array would take
+     * more than half the heap, is tiled
+     * @param rowCount grid row count
+     * @param colCount grid column count
+     * @param maxValue the largest value that will be stored
+     * @return a byte, short or int backed grid, or a TiledGrid
+     */
+    public static NeighborGrid create(int rowCount, int colCount, int maxValue) {
+        long cellCount = (long) rowCount * colCount;
+        if (cellCount > Integer.MAX_VALUE - 8 ||
+                cellCount * cellBytes(maxValue) > Runtime.getRuntime().maxMemory() / 2) {
+            return new TiledGrid(rowCount, colCount, maxValue);
+        }
+        return createFlat(rowCount, colCount, maxValue);
+    }
+
+    /**
+     * creates a zeroed grid held in one array with cells wide enough for maxValue
+     * @param rowCount grid row count
+     * @param colCount grid column count
+     * @param maxValue the largest value that will be stored
+     * @return a byte, short or int backed grid
+     * @throws IllegalArgumentException if the grid has too many cells for one array
+     */
+    public static NeighborGrid createFlat(int rowCount, int colCount, int maxValue) {
+        long cellCount = (long) rowCount * colCount;
+        if (cellCount > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("grid of " + rowCount + " x " + colCount +
+                    " cells is too large for a single array");
+        }
+        if (maxValue <= Byte.MAX_VALUE) return new ByteGrid(rowCount, colCount);
+        if (maxValue <= Short.MAX_VALUE) return new ShortGrid(rowCount, colCount);
+        return new IntGrid(rowCount, colCount);
+    }
+
+    /**
+     * creates a zeroed grid in native memory with cells wide enough for maxValue
+     * a grid larger than half the physical memory is a memory-mapped scratch file
+     * so the page cache spills it to disk instead of the process running out of memory
+     * @param rowCount grid row count
+     * @param colCount grid column count
+     * @param maxValue the largest value that will be stored
+     * @return a SegmentGrid, close it once the count is done
+     */
+    public static NeighborGrid createOffHeap(int rowCount, int colCount, int maxValue) {
+        int cellBytes = cellBytes(maxValue);
+        long bytes = (long) rowCount * colCount * cellBytes;
+        long physicalBytes = ((OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getTotalMemorySize();
+        return new SegmentGrid(rowCount, colCount, cellBytes, bytes > physicalBytes / 2);
+    }
+
+    /**
+     * releases memory held outside the heap, the grid is not used afterwards
+     * heap grids are left to the garbage collector
+     */
+    public void close() {}
+
+    /**
+     * @param row
+     * @param col
+     * @return the index of the cell, the cells of a row have consecutive indexes
+     */
+    public long index(int row, int col) {
+        return (long) row * colCount + col;
+    }
+
+    public abstract int get(long index);
+
+    public abstract void set(long index, int value);
+
+    /**
+     * copies every cell of one row onto another
+     * @param fromRow the row to copy
+     * @param toRow the row overwritten
+     */
+    public abstract void copyRow(int fromRow, int toRow);
+
+    /**
+     * sets every cell in a range of rows to zero
+     * @param fromRow the first row cleared
+     * @param toRow the row after the last row cleared
+     */
+    public abstract void clearRows(int fromRow, int toRow);
+
+    /**
+     * copies a range of rows into a new grid of the same cell type
+     * @param fromRow the first row copied
+     * @param rows the count of rows copied
+     * @return the copy
+     */
+    public abstract NeighborGrid copyRows(int fromRow, int rows);
+
+    /**
+     * copies a row into a row of another grid of the same width, such as a halo made by copyRows
+     * @param fromRow the row copied
+     * @param target the grid written
+     * @param toRow the row of target overwritten
+     */
+    public void copyRowTo(int fromRow, NeighborGrid target, int toRow) {
+        long from = index(fromRow, 0);
+        long to = target.index(toRow, 0);
+        for (int col = 0; col < colCount; col++) {
+            target.set(to + col, get(from + col));
+        }
+    }
+
+    /**
+     * @return the memory used by the cells
+     */
+    public abstract long bytes();
+
+    /**
+     * counts cells with a value above zero in a range of rows
+     * @param fromRow the first row counted
+     * @param toRow the row after the last row counted
+     * @return the count of marked cells
+     */
+    public long countMarked(int fromRow, int toRow) {
+        long marked = 0;
+        for (long i = index(fromRow, 0), end = index(toRow, 0); i < end; i++) {
+            marked += get(i) > 0 ? 1 : 0;
+        }
+        return marked;
+    }
+
+    static final class ByteGrid extends NeighborGrid {
+        private final byte[] cells;
+
+        ByteGrid(int rowCount, int colCount) {
+            super(rowCount, colCount);
+            this.cells = new byte[rowCount * colCount];
+        }
+
+        @Override
+        public int get(long index) {
+            return cells[(int) index];
+        }
+
+        @Override
+        public void set(long index, int value) {
+            cells[(int) index] = (byte) value;
+        }
+
+        @Override
+        public void copyRow(int fromRow, int toRow) {
+            System.arraycopy(cells, (int) index(fromRow, 0), cells, (int) index(toRow, 0), colCount);
+        }
+
+        @Override
+        public void clearRows(int fromRow, int toRow) {
+            Arrays.fill(cells, (int) index(fromRow, 0), (int) index(toRow, 0), (byte) 0);
+        }
+
+        @Override
+        public NeighborGrid copyRows(int fromRow, int rows) {
+            ByteGrid copy = new ByteGrid(rows, colCount);
+            System.arraycopy(cells, (int) index(fromRow, 0), copy.cells, 0, rows * colCount);
+            return copy;
+        }
+
+        @Override
+        public void copyRowTo(int fromRow, NeighborGrid target, int toRow) {
+            if (!(target instanceof ByteGrid flat)) {
+                super.copyRowTo(fromRow, target, toRow);
+                return;
+            }
+            System.arraycopy(cells, (int) index(fromRow, 0), flat.cells, (int) flat.index(toRow, 0), colCount);
+        }
+
+        @Override
+        public long bytes() {
+            return cells.length;
+        }
+    }
+
+    static final class ShortGrid extends NeighborGrid {
+        private final short[] cells;
+
+        ShortGrid(int rowCount, int colCount) {
+            super(rowCount, colCount);
+            this.cells = new short[rowCount * colCount];
+        }
+
+        @Override
+        public int get(long index) {
+            return cells[(int) index];
+        }
+
+        @Override
+        public void set(long index, int value) {
+            cells[(int) index] = (short) value;
+        }
+
+        @Override
+        public void copyRow(int fromRow, int toRow) {
+            System.arraycopy(cells, (int) index(fromRow, 0), cells, (int) index(toRow, 0), colCount);
+        }
+
+        @Override
+        public void clearRows(int fromRow, int toRow) {
+            Arrays.fill(cells, (int) index(fromRow, 0), (int) index(toRow, 0), (short) 0);
+        }
+
+        @Override
+        public NeighborGrid copyRows(int fromRow, int rows) {
+            ShortGrid copy = new ShortGrid(rows, colCount);
+            System.arraycopy(cells, (int) index(fromRow, 0), copy.cells, 0, rows * colCount);
+            return copy;
+        }
+
+        @Override
+        public void copyRowTo(int fromRow, NeighborGrid target, int toRow) {
+            if (!(target instanceof ShortGrid flat)) {
+                super.copyRowTo(fromRow, target, toRow);
+                return;
+            }
+            System.arraycopy(cells, (int) index(fromRow, 0), flat.cells, (int) flat.index(toRow, 0), colCount);
+        }
+
+        @Override
+        public long bytes() {
+            return 2L * cells.length;
+        }
+    }
+
+    static final class IntGrid extends NeighborGrid {
+        private final int[] cells;
+
+        IntGrid(int rowCount, int colCount) {
+            super(rowCount, colCount);
+            this.cells = new int[rowCount * colCount];
+        }
+
+        /**
+         * @return the backing array, for the Vector API scan
+         */
+        int[] cells() {
+            return cells;
+        }
+
+        @Override
+        public int get(long index) {
+            return cells[(int) index];
+        }
+
+        @Override
+        public void set(long index, int value) {
+            cells[(int) index] = value;
+        }
+
+        @Override
+        public void copyRow(int fromRow, int toRow) {
+            System.arraycopy(cells, (int) index(fromRow, 0), cells, (int) index(toRow, 0), colCount);
+        }
+
+        @Override
+        public void clearRows(int fromRow, int toRow) {
+            Arrays.fill(cells, (int) index(fromRow, 0), (int) index(toRow, 0), 0);
+        }
+
+        @Override
+        public NeighborGrid copyRows(int fromRow, int rows) {
+            IntGrid copy = new IntGrid(rows, colCount);
+            System.arraycopy(cells, (int) index(fromRow, 0), copy.cells, 0, rows * colCount);
+            return copy;
+        }
+
+        @Override
+        public void copyRowTo(int fromRow, NeighborGrid target, int toRow) {
+            if (!(target instanceof IntGrid flat)) {
+                super.copyRowTo(fromRow, target, toRow);
+                return;
+            }
+            System.arraycopy(cells, (int) index(fromRow, 0), flat.cells, (int) flat.index(toRow, 0), colCount);
+        }
+
+        @Override
+        public long bytes() {
+            return 4L * cells.length;
+        }
+    }
+
+    /**
+     * a grid cut into TILE_SIZE x TILE_SIZE tiles found through a two level directory,
+     * a row of tile slots is allocated when a tile in it is first marked, and a tile when one of its cells is
+     * cells of tiles never marked read as zero, so memory grows with the covered area
+     * indexes hold the row in the high 32 bits and the column in the low 32 bits,
+     * so the cells of a row still have consecutive indexes
+     * tiles are bytes, shorts or ints by the same rule create uses for flat grids
+     * tiles are allocated under a lock so bands and stripes on other threads can mark cells of a shared tile
+     */
+    static final class TiledGrid extends NeighborGrid {
+        static final int TILE_SHIFT = 8;
+        static final int TILE_SIZE = 1 << TILE_SHIFT;
+        private static final int TILE_MASK = TILE_SIZE - 1;
+        private final int maxValue;
+        private final int tileCols;
+        /** byte tiles by tile row then tile column, null unless markings fit a byte */
+        private final byte[][][] byteTiles;
+        /** short tiles by tile row then tile column, null unless markings fit a short and not a byte */
+        private final short[][][] shortTiles;
+        /** int tiles by tile row then tile column, null when markings fit a short */
+        private final int[][][] intTiles;
+        private long tileCount;
+
+        TiledGrid(int rowCount, int colCount, int maxValue) {
+            super(rowCount, colCount);
+            this.maxValue = maxValue;
+            int tileRows = (int) (((long) rowCount + TILE_MASK) >>> TILE_SHIFT);
+            this.tileCols = (int) (((long) colCount + TILE_MASK) >>> TILE_SHIFT);
+            this.byteTiles = maxValue <= Byte.MAX_VALUE ? new byte[tileRows][][] : null;
+            this.shortTiles = maxValue > Byte.MAX_VALUE && maxValue <= Short.MAX_VALUE
+                    ? new short[tileRows][][] : null;
+            this.intTiles = maxValue > Short.MAX_VALUE ? new int[tileRows][][] : null;
+        }
+
+        @Override
+        public long index(int row, int col) {
+            return (long) row << 32 | col;
+        }
+
+        /**
+         * @param index a cell index
+         * @return the offset of the cell within its tile
+         */
+        private static int cellOffset(long index) {
+            return ((int) (index >>> 32) & TILE_MASK) << TILE_SHIFT | ((int) index & TILE_MASK);
+        }
+
+        @Override
+        public int get(long index) {
+            int tileRow = (int) (index >>> 32 + TILE_SHIFT);
+            int tileCol = (int) index >>> TILE_SHIFT;
+            if (byteTiles != null) {
+                byte[][] tiles = byteTiles[tileRow];
+                byte[] tile = tiles == null ? null : tiles[tileCol];
+                return tile == null ? 0 : tile[cellOffset(index)];
+            }
+            if (shortTiles != null) {
+                short[][] tiles = shortTiles[tileRow];
+                short[] tile = tiles == null ? null : tiles[tileCol];
+                return tile == null ? 0 : tile[cellOffset(index)];
+            }
+            int[][] tiles = intTiles[tileRow];
+            int[] tile = tiles == null ? null : tiles[tileCol];
+            return tile == null ? 0 : tile[cellOffset(index)];
+        }
+
+        @Override
+        public void set(long index, int value) {
+            int tileRow = (int) (index >>> 32 + TILE_SHIFT);
+            int tileCol = (int) index >>> TILE_SHIFT;
+            if (byteTiles != null) {
+                byte[][] tiles = byteTiles[tileRow];
+                byte[] tile = tiles == null ? null : tiles[tileCol];
+                if (tile == null) {
+                    if (value == 0) return;
+                    tile = allocateByteTile(tileRow, tileCol);
+                }
+                tile[cellOffset(index)] = (byte) value;
+                return;
+            }
+            if (shortTiles != null) {
+                short[][] tiles = shortTiles[tileRow];
+                short[] tile = tiles == null ? null : tiles[tileCol];
+                if (tile == null) {
+                    if (value == 0) return;
+                    tile = allocateShortTile(tileRow, tileCol);
+                }
+                tile[cellOffset(index)] = (short) value;
+                return;
+            }
+            int[][] tiles = intTiles[tileRow];
+            int[] tile = tiles == null ? null : tiles[tileCol];
+            if (tile == null) {
+                if (value == 0) return;
+                tile = allocateIntTile(tileRow, tileCol);
+            }
+            tile[cellOffset(index)] = value;
+        }
+
+        private synchronized byte[] allocateByteTile(int tileRow, int tileCol) {
+            if (byteTiles[tileRow] == null) byteTiles[tileRow] = new byte[tileCols][];
+            if (byteTiles[tileRow][tileCol] == null) {
+                byteTiles[tileRow][tileCol] = new byte[TILE_SIZE * TILE_SIZE];
+                tileCount++;
+            }
+            return byteTiles[tileRow][tileCol];
+        }
+
+        private synchronized short[] allocateShortTile(int tileRow, int tileCol) {
+            if (shortTiles[tileRow] == null) shortTiles[tileRow] = new short[tileCols][];
+            if (shortTiles[tileRow][tileCol] == null) {
+                shortTiles[tileRow][tileCol] = new short[TILE_SIZE * TILE_SIZE];
+                tileCount++;
+            }
+            return shortTiles[tileRow][tileCol];
+        }
+
+        private synchronized int[] allocateIntTile(int tileRow, int tileCol) {
+            if (intTiles[tileRow] == null) intTiles[tileRow] = new int[tileCols][];
+            if (intTiles[tileRow][tileCol] == null) {
+                intTiles[tileRow][tileCol] = new int[TILE_SIZE * TILE_SIZE];
+                tileCount++;
+            }
+            return intTiles[tileRow][tileCol];
+        }
+
+        /**
+         * @param tileRow a row of tiles
+         * @return its tile slots whatever the cell width, null if no tile in it was marked
+         */
+        private Object[] tileRow(int tileRow) {
+            return byteTiles != null ? byteTiles[tileRow] : shortTiles != null ? shortTiles[tileRow] : intTiles[tileRow];
+        }
+
+        @Override
+        public void copyRow(int fromRow, int toRow) {
+            long from = index(fromRow, 0);
+            long to = index(toRow, 0);
+            for (int col = 0; col < colCount; col++) {
+                set(to + col, get(from + col));
+            }
+        }
+
+        /**
+         * zeroes the rows, tiles whose rows are all cleared are dropped
+         */
+        @Override
+        public synchronized void clearRows(int fromRow, int toRow) {
+            for (int tileRow = fromRow >>> TILE_SHIFT; tileRow <= (toRow - 1) >>> TILE_SHIFT && fromRow < toRow;
+                 tileRow++) {
+                Object[] tiles = tileRow(tileRow);
+                if (tiles == null) continue;
+                int firstRow = Math.max(fromRow, tileRow << TILE_SHIFT);
+                int endRow = Math.min(toRow, (tileRow + 1) << TILE_SHIFT);
+                boolean wholeTile = endRow - firstRow == TILE_SIZE || (firstRow == tileRow << TILE_SHIFT &&
+                        endRow == rowCount);
+                for (int tileCol = 0; tileCol < tileCols; tileCol++) {
+                    if (tiles[tileCol] == null) continue;
+                    if (wholeTile) {
+                        tiles[tileCol] = null;
+                        tileCount--;
+                    } else if (byteTiles != null) {
+                        Arrays.fill((byte[]) tiles[tileCol], (firstRow & TILE_MASK) << TILE_SHIFT,
+                                ((endRow - 1 & TILE_MASK) + 1) << TILE_SHIFT, (byte) 0);
+                    } else if (shortTiles != null) {
+                        Arrays.fill((short[]) tiles[tileCol], (firstRow & TILE_MASK) << TILE_SHIFT,
+                                ((endRow - 1 & TILE_MASK) + 1) << TILE_SHIFT, (short) 0);
+                    } else {
+                        Arrays.fill((int[]) tiles[tileCol], (firstRow & TILE_MASK) << TILE_SHIFT,
+                                ((endRow - 1 & TILE_MASK) + 1) << TILE_SHIFT, 0);
+                    }
+                }
+            }
+        }
+
+        /**
+         * copies rows into a flat grid, rows are copied one at a time for halos
+         */
+        @Override
+        public NeighborGrid copyRows(int fromRow, int rows) {
+            NeighborGrid copy = createFlat(rows, colCount, maxValue);
+            for (int row = 0; row < rows; row++) {
+                long from = index(fromRow + row, 0);
+                long to = copy.index(row, 0);
+                for (int col = 0; col < colCount; col++) {
+                    copy.set(to + col, get(from + col));
+                }
+            }
+            return copy;
+        }
+
+        @Override
+        public long bytes() {
+            return tileCount * TILE_SIZE * TILE_SIZE *
+                    (byteTiles != null ? 1 : shortTiles != null ? Short.BYTES : Integer.BYTES);
+        }
+
+        /**
+         * counts marked cells tile by tile, skipping tiles never marked
+         */
+        @Override
+        public long countMarked(int fromRow, int toRow) {
+            long marked = 0;
+            for (int row = fromRow; row < toRow; row++) {
+                Object[] tiles = tileRow(row >>> TILE_SHIFT);
+                if (tiles == null) {
+                    // every row of this tile row is unmarked
+                    row = (row | TILE_MASK);
+                    continue;
+                }
+                int rowOffset = (row & TILE_MASK) << TILE_SHIFT;
+                for (int tileCol = 0; tileCol < tileCols; tileCol++) {
+                    if (tiles[tileCol] == null) continue;
+                    int width = Math.min(TILE_SIZE, colCount - (tileCol << TILE_SHIFT));
+                    for (int i = rowOffset; i < rowOffset + width; i++) {
+                        int value = byteTiles != null ? ((byte[]) tiles[tileCol])[i]
+                                : shortTiles != null ? ((short[]) tiles[tileCol])[i] : ((int[]) tiles[tileCol])[i];
+                        marked += value > 0 ? 1 : 0;
+                    }
+                }
+            }
+            return marked;
+        }
+    }
+
+    /**
+     * a grid held in a MemorySegment outside the heap, row after row like the flat grids
+     * the segment comes from a shared arena so row bands on other threads can use it,
+     * or is a memory-mapped scratch file deleted on close when the grid is larger than RAM
+     * native and mapped memory start zeroed
+     * rows are moved and cleared with segment copies and fills
+     */
+    static final class SegmentGrid extends NeighborGrid {
+        private final Arena arena;
+        private final MemorySegment cells;
+        private final int cellBytes;
+        /** the mapped scratch file, null for native memory */
+        private final Path scratchFile;
+
+        SegmentGrid(int rowCount, int colCount, int cellBytes, boolean mapped) {
+            super(rowCount, colCount);
+            this.cellBytes = cellBytes;
+            this.arena = Arena.ofShared();
+            long bytes = (long) rowCount * colCount * cellBytes;
+            if (!mapped) {
+                this.scratchFile = null;
+                this.cells = arena.allocate(bytes, cellBytes);
+                return;
+            }
+            try {
+                this.scratchFile = Files.createTempFile("neighbors-grid", ".bin");
+                try (FileChannel channel = FileChannel.open(scratchFile, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+                    this.cells = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes, arena);
+                }
+            } catch (IOException e) {
+                arena.close();
+                throw new UncheckedIOException("cannot map a scratch file for the grid", e);
+            }
+        }
+
+        /**
+         * @param index a cell index
+         * @return the byte offset of the cell in the segment
+         */
+        private long offset(long index) {
+            return index * cellBytes;
+        }
+
+        @Override
+        public int get(long index) {
+            return switch (cellBytes) {
+                case 1 -> cells.get(ValueLayout.JAVA_BYTE, index);
+                case 2 -> cells.get(ValueLayout.JAVA_SHORT, offset(index));
+                default -> cells.get(ValueLayout.JAVA_INT, offset(index));
+            };
+        }
+
+        @Override
+        public void set(long index, int value) {
+            switch (cellBytes) {
+                case 1 -> cells.set(ValueLayout.JAVA_BYTE, index, (byte) value);
+                case 2 -> cells.set(ValueLayout.JAVA_SHORT, offset(index), (short) value);
+                default -> cells.set(ValueLayout.JAVA_INT, offset(index), value);
+            }
+        }
+
+        @Override
+        public void copyRow(int fromRow, int toRow) {
+            MemorySegment.copy(cells, offset(index(fromRow, 0)), cells, offset(index(toRow, 0)),
+                    (long) colCount * cellBytes);
+        }
+
+        @Override
+        public void clearRows(int fromRow, int toRow) {
+            long from = offset(index(fromRow, 0));
+            cells.asSlice(from, offset(index(toRow, 0)) - from).fill((byte) 0);
+        }
+
+        /**
+         * copies rows into a flat heap grid, rows are copied one at a time for halos
+         */
+        @Override
+        public NeighborGrid copyRows(int fromRow, int rows) {
+            NeighborGrid copy = createFlat(rows, colCount,
+                    cellBytes == 1 ? Byte.MAX_VALUE : cellBytes == 2 ? Short.MAX_VALUE : Integer.MAX_VALUE);
+            for (long i = 0, from = index(fromRow, 0), end = (long) rows * colCount; i < end; i++) {
+                copy.set(i, get(from + i));
+            }
+            return copy;
+        }
+
+        @Override
+        public long bytes() {
+            return cells.byteSize();
+        }
+
+        @Override
+        public void close() {
+            arena.close();
+            if (scratchFile == null) return;
+            try {
+                Files.deleteIfExists(scratchFile);
+            } catch (IOException e) {
+                scratchFile.toFile().deleteOnExit();
+            }
+        }
+    }
+}
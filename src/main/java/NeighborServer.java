@@ -0,0 +1,183 @@
+package ManhattanDistance;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import javax.json.JsonException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * answers neighbor counts over http from one long lived JVM
+ * so requests skip JVM startup and class loading and run on engines the JIT has already compiled
+ * each POST to /count carries the same json document GridReader reads from a file
+ * and is answered with the count, the engine used and the parse and compute times,
+ * a GET of /metrics answers with the totals gathered by Metrics, which are process wide,
+ * so requests running at once add to the same counters and cannot be told apart in them
+ * every request runs on its own virtual thread
+ */
+class NeighborServer {
+    private static Logger logger = LoggerFactory.getLogger(NeighborServer.class);
+    public static final int DEFAULT_PORT = 8080;
+    private static final String COUNT_PATH = "/count";
+    private static final String METRICS_PATH = "/metrics";
+
+    /**
+     * the settings every request is counted with, fixed when the server starts
+     * @param options memory saving, threading and vector settings passed to the engines
+     * @param denseEngine the engine used when a grid is dense
+     * @param sparseEngine the engine used when a grid is sparse
+     * @param costModel engine timings fitted by -calibrate, null to decide with the density calculation
+     */
+    public record Settings(Engine.Options options, Engine denseEngine, Engine sparseEngine,
+                           CostModel costModel) {}
+
+    private final HttpServer server;
+    private final Settings settings;
+
+    /**
+     * binds the server to the loopback address, requests are not handled until start
+     * @param port the port to listen on, 0 for any free port
+     * @param settings the engine settings every request is counted with
+     * @throws IOException if the port cannot be bound
+     */
+    NeighborServer(int port, Settings settings) throws IOException {
+        this.settings = settings;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(COUNT_PATH, this::handleCount);
+        server.createContext(METRICS_PATH, NeighborServer::handleMetrics);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    /**
+     * starts handling requests on a background thread, the JVM stays up until stop is called
+     */
+    public void start() {
+        server.start();
+        logger.info("listening on " + url());
+    }
+
+    /**
+     * stops accepting requests and waits briefly for those in progress
+     */
+    public void stop() {
+        server.stop(1);
+    }
+
+    /**
+     * @return the url requests are posted to
+     */
+    public String url() {
+        InetSocketAddress address = server.getAddress();
+        return "http://" + address.getHostString() + ":" + address.getPort() + COUNT_PATH;
+    }
+
+    /**
+     * parses the posted document straight from the request body and counts it
+     * @param exchange the request and its response
+     * @throws IOException if the response cannot be written
+     */
+    private void handleCount(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            try {
+                count(exchange);
+            } catch (RuntimeException e) {
+                logger.error("request failed", e);
+                // a response already started cannot take a status, closing the exchange ends it
+                if (exchange.getResponseCode() == -1) {
+                    respond(exchange, 500, error("counting failed: " + e));
+                }
+            }
+        }
+    }
+
+    /**
+     * parses the posted document and answers with its count
+     * @param exchange the request and its response
+     * @throws IOException if the request cannot be read or the response written
+     */
+    private void count(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            respond(exchange, 405, error("POST a json document with a 'distanceThreshold' and 'data'"));
+            return;
+        }
+        long startTime = System.nanoTime();
+        FlagValues flagData;
+        try {
+            flagData = GridReader.parseJsonNeighborData(
+                    new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+        } catch (JsonException e) {
+            respond(exchange, 400, error("invalid json: " + e.getMessage()));
+            return;
+        }
+        if (flagData.distanceThreshold < 0) {
+            respond(exchange, 400, error("please supply a 'distanceThreshold' " +
+                    "integer >=0 and a 'data' 2 dimenisonal array"));
+            return;
+        }
+        long parseTime = System.nanoTime();
+        Engine engine = Neighbors.selectEngine(flagData, settings.denseEngine(), settings.sparseEngine(),
+                settings.costModel());
+        long neighborCount = Neighbors.getNeighbors(flagData, false, settings.options(), engine);
+        long endTime = System.nanoTime();
+        logger.info("counted " + neighborCount + " with " + engine);
+        respond(exchange, 200, "{\"neighborCount\":" + neighborCount +
+                ",\"engine\":\"" + engine.argName + "\"" +
+                ",\"parseMillis\":" + millis(parseTime - startTime) +
+                ",\"computeMillis\":" + millis(endTime - parseTime) + "}");
+    }
+
+    /**
+     * answers with the phase timings and engine counters of every request since the server started
+     * the counters are shared by the whole process, so they are totals over all requests,
+     * including any still running, and not the work of one request
+     * @param exchange the request and its response
+     * @throws IOException if the response cannot be written
+     */
+    private static void handleMetrics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Metrics.commit();
+            respond(exchange, 200, Metrics.toJson());
+        }
+    }
+
+    /**
+     * @param message the reason a request was refused
+     * @return a json object holding the message
+     */
+    private static String error(String message) {
+        return "{\"error\":\"" + message.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+    }
+
+    /**
+     * @param nanos a duration in nanoseconds
+     * @return the duration in milliseconds to the microsecond
+     */
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0);
+    }
+
+    /**
+     * writes a json response body
+     * @param exchange the request being answered
+     * @param status the http status code
+     * @param body the json text
+     * @throws IOException if the response cannot be written
+     */
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -1,12 +1,16 @@
 package ManhattanDistance;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.util.HashSet;
+import java.util.List;
 
 /**
  * Reads in an input array of numbers, and a distance threshold
@@ -27,14 +31,58 @@ public class Neighbors {
      * outputs the result to the console
      * Contains an algorithm optimized for sparse arrays and an algorithm optimized for dense arrays
      *
-     * @param args a string filename of a JSON file containing
+     * @param args a string filename of a JSON file, or -calibrate to time every engine on this
+     *             machine, with the -mem_saver, -parallel, -simd and -off_heap options given,
+     *             and write a cost profile used to choose engines on later runs,
+     *             or -serve to count documents posted to a local http server. The file contains
      *             a "data" 2 dimensional array
      *             a "distanceThreshold" integer > 0
      *             an optional "density" that can be "sparse", "dense" or by default "test"
      *             which determines which algorithm is used (if PERFORM_TEST both are still run)
+     *             with "test" and a cost profile present the engine predicted to be fastest is used
      *
-     *             [optional] -perform_test trigger both algorithms and confirm they generate the same result
-     *             [optional] -mem_saver execute the dense version with a chunk approach saving memory
+     *             [optional] -perform_test trigger all algorithms and confirm they generate the same result,
+     *             skipping those whose arrays would not fit in half the heap, or in a batch file's budget share
+     *             [optional] -mem_saver count rows while the file is read holding only a window
+     *             of about 2 * distanceThreshold + 1 rows, with -perform_test the file is loaded and
+     *             the dense version runs with a chunk approach saving memory
+     *             [optional] -dense_engine=name the algorithm used for dense arrays,
+     *             multi_pass by default, distance_transform, bitset or streaming
+     *             [optional] -sparse_engine=name the algorithm used for sparse arrays,
+     *             flag_fill by default, row_interval or rotated_union
+     *             [optional] -parallel split each pass of the multi-pass scan into row bands,
+     *             and the flag fill into row stripes, run on a thread pool
+     *             [optional] -threads=n the thread count used with -parallel, all processors by default
+     *             [optional] -simd update rows of the multi-pass scan with the Vector API,
+     *             needs the JVM option --add-modules jdk.incubator.vector
+     *             [optional] -off_heap hold the multi-pass scan grid in native memory outside the heap,
+     *             in a memory-mapped scratch file when it is larger than half the physical memory
+     *             [optional] -mapped_parse read the file from a memory mapping, scanning row ranges
+     *             of the data array on -threads threads, all processors without -parallel
+     *             [optional] -cache keep each grid read, keyed by a hash of its data array, with its count
+     *             at every distanceThreshold, so reading the same grid again skips parsing and counting,
+     *             with -mem_saver and no -perform_test a grid not yet cached is streamed and not added
+     *             [optional] -cache_dir=path the cache directory, neighbors-cache in the working directory by default
+     *             [optional] -cache_mb=n the size the cache is kept under, least recently used grids are deleted,
+     *             256 by default
+     *             [optional] -profile=path the cost profile written by -calibrate,
+     *             neighbors-profile.properties in the working directory by default
+     *             [optional] -thresholds=first..last or -thresholds=a,b,c print the count for each
+     *             distanceThreshold from one computation of every cell's distance to its nearest flag,
+     *             the file's distanceThreshold is not needed
+     *             [optional] -port=n the port -serve listens on, 8080 by default
+     *             several files, a directory or a glob such as data*.json are counted as a batch
+     *             printing one line per file, the exit code is 1 if a file fails or its counts do not match
+     *             [optional] -jobs=n the number of batch files counted at once, all processors by default
+     *             [optional] -memory_budget_mb=n the memory the batch files being parsed and counted may share,
+     *             half the maximum heap by default
+     *             [optional] -coverage=path write the covered cells of a single file to a binary file,
+     *             with the multi-pass scan, or the streaming scan with -mem_saver and no -perform_test
+     *             [optional] -coverage_format=name how -coverage rows are written, bits by default
+     *             for a packed bit per cell, runs for the covered column runs of each row,
+     *             or distance for the distance of each cell to its nearest flag
+     *             [optional] -metrics=path write the phase timings and engine counters of the run
+     *             to a json file, they are also JFR events when the JVM is recording
      */
     public static void main(String[] args) {
         long startTime = System.nanoTime();
@@ -52,28 +100,216 @@ public class Neighbors {
         }
         boolean performTest = argSet.contains("-perform_test");
         boolean memSaver = argSet.contains("-mem_saver");
+        boolean simd = argSet.contains("-simd");
+        boolean offHeap = argSet.contains("-off_heap");
+        boolean mappedParse = argSet.contains("-mapped_parse");
+        Engine denseEngine = Engine.fromArgName(argValue(args, "-dense_engine=", Engine.MULTI_PASS.argName));
+        if (denseEngine == null || !denseEngine.dense) {
+            System.out.println("-dense_engine must be one of " + Engine.argNames(true));
+            return;
+        }
+        Engine sparseEngine = Engine.fromArgName(argValue(args, "-sparse_engine=", Engine.FLAG_FILL.argName));
+        if (sparseEngine == null || sparseEngine.dense) {
+            System.out.println("-sparse_engine must be one of " + Engine.argNames(false));
+            return;
+        }
+        int threads = 1;
+        if (argSet.contains("-parallel")) {
+            try {
+                threads = Integer.parseInt(argValue(args, "-threads=",
+                        String.valueOf(Runtime.getRuntime().availableProcessors())));
+            } catch (NumberFormatException e) {
+                System.out.println("-threads must be an integer");
+                return;
+            }
+        }
         logger.info("performTest: " + performTest);
         logger.info("memSaver: " + memSaver);
-
-        String jsonData = null;
-        try {
-            jsonData = Files.readString(Paths.get(filePath));
-        } catch (IOException e) {
-            System.out.println("Error reading file: " + e.getMessage());
+        logger.info("denseEngine: " + denseEngine);
+        logger.info("sparseEngine: " + sparseEngine);
+        logger.info("threads: " + threads);
+        logger.info("simd: " + simd);
+        logger.info("offHeap: " + offHeap);
+        logger.info("mappedParse: " + mappedParse);
+        int parseThreads = argSet.contains("-parallel") ? threads : Runtime.getRuntime().availableProcessors();
+        Engine.Options options = new Engine.Options(memSaver, threads, simd, offHeap);
+        Path profile = Paths.get(argValue(args, "-profile=", CostModel.DEFAULT_PROFILE));
+        Path coverage = argValue(args, "-coverage=", null) == null ? null :
+                Paths.get(argValue(args, "-coverage=", null));
+        GridWriter.Format coverageFormat = GridWriter.Format.fromArgName(
+                argValue(args, "-coverage_format=", GridWriter.Format.BITS.argName));
+        if (coverageFormat == null) {
+            System.out.println("-coverage_format must be one of " + GridWriter.Format.argNames());
             return;
         }
-        FlagValues flagData = GridReader.parseJsonNeighborData(jsonData);
-        if (flagData.distanceThreshold < 0) {
-            System.out.println("please supply a JSON file with a 'distanceThreshold' " +
-                    "integer >=0 and a 'data' 2 dimenisonal array");
+        GridCache gridCache = null;
+        if (argSet.contains("-cache")) {
+            try {
+                long cacheMb = Long.parseLong(argValue(args, "-cache_mb=", String.valueOf(GridCache.DEFAULT_MAX_MB)));
+                gridCache = new GridCache(Paths.get(argValue(args, "-cache_dir=", GridCache.DEFAULT_DIR)),
+                        cacheMb * 1024 * 1024);
+            } catch (NumberFormatException e) {
+                System.out.println("-cache_mb must be an integer");
+                return;
+            }
+        }
+        int[] thresholds = null;
+        if (argValue(args, "-thresholds=", null) != null) {
+            try {
+                thresholds = parseThresholds(argValue(args, "-thresholds=", null));
+            } catch (IllegalArgumentException e) {
+                System.out.println("-thresholds must be a range like 0..50 or a list like 1,4,16 of integers >= 0");
+                return;
+            }
+        }
+        if (filePath.equals("-calibrate")) {
+            CostModel costModel = Calibration.calibrate(options);
+            try {
+                costModel.save(profile);
+            } catch (IOException e) {
+                System.out.println("Error writing profile: " + e.getMessage());
+                return;
+            }
+            System.out.println("wrote cost profile " + profile + "\n" + costModel);
+            return;
+        }
+        if (filePath.equals("-serve")) {
+            NeighborServer server;
+            try {
+                int port = Integer.parseInt(argValue(args, "-port=", String.valueOf(NeighborServer.DEFAULT_PORT)));
+                server = new NeighborServer(port, new NeighborServer.Settings(
+                        options, denseEngine, sparseEngine,
+                        CostModel.load(profile, options)));
+            } catch (NumberFormatException e) {
+                System.out.println("-port must be an integer");
+                return;
+            } catch (IOException e) {
+                System.out.println("Error starting server: " + e.getMessage());
+                return;
+            }
+            server.start();
+            System.out.println("listening on " + server.url());
+            return;
+        }
+        ArrayList<String> fileArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.startsWith("-")) fileArgs.add(arg);
+        }
+        if (coverage != null && (thresholds != null || (!fileArgs.isEmpty() && NeighborBatch.isBatch(fileArgs)))) {
+            System.out.println("-coverage writes the cells of one file at one distanceThreshold, " +
+                    "it cannot be used with -thresholds or a batch");
+            return;
+        }
+        if (!fileArgs.isEmpty() && NeighborBatch.isBatch(fileArgs)) {
+            int jobs;
+            long budgetBytes;
+            try {
+                jobs = Integer.parseInt(argValue(args, "-jobs=",
+                        String.valueOf(Runtime.getRuntime().availableProcessors())));
+                budgetBytes = argValue(args, "-memory_budget_mb=", null) == null
+                        ? Runtime.getRuntime().maxMemory() / 2
+                        : Long.parseLong(argValue(args, "-memory_budget_mb=", null)) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                System.out.println("-jobs and -memory_budget_mb must be integers");
+                return;
+            }
+            List<NeighborBatch.Result> results;
+            try {
+                results = new NeighborBatch(new NeighborServer.Settings(
+                        options, denseEngine, sparseEngine,
+                        CostModel.load(profile, options)), performTest, mappedParse, Math.max(1, jobs), budgetBytes)
+                        .run(NeighborBatch.expand(fileArgs));
+            } catch (IOException e) {
+                System.out.println("Error listing files: " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            System.out.println("elapsed time in ms:" + (System.nanoTime() - startTime) / 1_000_000);
+            reportMetrics(args);
+            for (NeighborBatch.Result result : results) {
+                // a nightly job fails when any file could not be counted or its counts disagree
+                if (result.error() != null || !result.countsMatch()) System.exit(1);
+            }
             return;
         }
-        int neighborCount = getNeighbors(flagData, performTest, memSaver);
-        System.out.println("found neighbor count " + neighborCount);
+
+        long neighborCount = 0;
+        if (thresholds != null) {
+            long[] counts;
+            try {
+                counts = thresholdCounts(filePath, thresholds, performTest, memSaver,
+                        mappedParse ? parseThreads : 0, gridCache);
+            } catch (IOException e) {
+                System.out.println("Error reading file: " + e.getMessage());
+                return;
+            }
+            for (int threshold : thresholds) {
+                System.out.println("distanceThreshold " + threshold + " found neighbor count " + counts[threshold]);
+            }
+        } else if (gridCache != null && coverage == null) {
+            try {
+                neighborCount = cachedCount(gridCache, Paths.get(filePath), mappedParse ? parseThreads : 0,
+                        performTest, memSaver && !performTest, options, denseEngine, sparseEngine,
+                        CostModel.load(profile, options));
+            } catch (IOException e) {
+                System.out.println("Error reading file or cache: " + e.getMessage());
+                return;
+            } catch (IllegalStateException e) {
+                System.out.println("Error streaming file: " + e.getMessage());
+                return;
+            }
+            if (neighborCount < 0) {
+                System.out.println("please supply a JSON file with a 'distanceThreshold' " +
+                        "integer >=0 and a 'data' 2 dimenisonal array");
+                return;
+            }
+        } else if (memSaver && !performTest) {
+            // the rows are counted as they are read, the flags are never held in memory
+            try (GridWriter writer = coverage == null ? null : new GridWriter(coverage, coverageFormat)) {
+                neighborCount = ScanStreaming.streamScan(Files.newBufferedReader(Paths.get(filePath)), writer);
+            } catch (IOException | UncheckedIOException e) {
+                System.out.println("Error reading file or writing coverage: " + e.getMessage());
+                return;
+            } catch (IllegalStateException e) {
+                System.out.println("Error streaming file: " + e.getMessage());
+                return;
+            } catch (IllegalArgumentException e) {
+                System.out.println("please supply a JSON file with a 'distanceThreshold' " +
+                        "integer >=0 and a 'data' 2 dimenisonal array");
+                return;
+            }
+        } else {
+            FlagValues flagData = null;
+            try {
+                flagData = parseFile(Paths.get(filePath), mappedParse ? parseThreads : 0);
+            } catch (IOException e) {
+                System.out.println("Error reading file: " + e.getMessage());
+                return;
+            }
+            if (flagData.distanceThreshold < 0) {
+                System.out.println("please supply a JSON file with a 'distanceThreshold' " +
+                        "integer >=0 and a 'data' 2 dimenisonal array");
+                return;
+            }
+            if (coverage != null) {
+                try {
+                    neighborCount = coverageScan(flagData, options, coverage, coverageFormat);
+                } catch (IOException | UncheckedIOException e) {
+                    System.out.println("Error writing coverage: " + e.getMessage());
+                    return;
+                }
+                if (performTest) countsMatch(flagData, options, Engine.MULTI_PASS, neighborCount);
+            } else {
+                Engine engine = selectEngine(flagData, denseEngine, sparseEngine, CostModel.load(profile, options));
+                neighborCount = getNeighbors(flagData, performTest, options, engine);
+            }
+        }
+        if (thresholds == null) System.out.println("found neighbor count " + neighborCount);
         long endTime = System.nanoTime();
         long duration = endTime - startTime;
         long durationMillis = duration / 1_000_000;
         System.out.println("elapsed time in ms:" + durationMillis);
+        reportMetrics(args);
         long totalMemory = Runtime.getRuntime().totalMemory(); // Total memory allocated to the JVM
         long freeMemory = Runtime.getRuntime().freeMemory();   // Free memory within the allocated JVM space
         long usedMemory = totalMemory - freeMemory;             // Used memory within the allocated JVM space
@@ -81,6 +317,213 @@ public class Neighbors {
         System.out.println("usedMemory: " + usedMemory);
     }
 
+    /**
+     * parses the -thresholds argument, a range first..last or a comma separated list
+     * @param thresholdsArg the argument text after -thresholds=
+     * @return the thresholds in increasing order without repeats
+     * @throws IllegalArgumentException if a threshold is not an integer >= 0 or the range is empty
+     */
+    private static int[] parseThresholds(String thresholdsArg) {
+        int[] thresholds;
+        int rangeIndex = thresholdsArg.indexOf("..");
+        if (rangeIndex >= 0) {
+            int first = Integer.parseInt(thresholdsArg.substring(0, rangeIndex).trim());
+            int last = Integer.parseInt(thresholdsArg.substring(rangeIndex + 2).trim());
+            if (last < first) throw new IllegalArgumentException("empty range " + thresholdsArg);
+            thresholds = new int[last - first + 1];
+            for (int i = 0; i < thresholds.length; i++) {
+                thresholds[i] = first + i;
+            }
+        } else {
+            String[] values = thresholdsArg.split(",");
+            thresholds = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                thresholds[i] = Integer.parseInt(values[i].trim());
+            }
+        }
+        thresholds = Arrays.stream(thresholds).sorted().distinct().toArray();
+        if (thresholds[0] < 0) throw new IllegalArgumentException("negative threshold " + thresholds[0]);
+        return thresholds;
+    }
+
+    /**
+     * counts the neighbors of a grid file for many distanceThresholds from one distance computation
+     * without -perform_test the file is streamed and the flags are never held in memory,
+     * with it the file is loaded and the count for each threshold is checked against every engine
+     * with a cache the counts come from the cached grid, and -perform_test runs the engines on its flags,
+     * a grid not yet cached is added unless -mem_saver without -perform_test streams it instead
+     * @param filePath the JSON file, its distanceThreshold is not needed
+     * @param thresholds the thresholds in increasing order
+     * @param performTest whether to check each count against every engine
+     * @param memSaver whether to stream a grid that is not cached rather than load and add it
+     * @param parseThreads the threads reading a loaded file from a memory mapping, 0 to read it with GridReader
+     * @param gridCache the cache of grids already read, null to read the file
+     * @return counts indexed by distanceThreshold, up to the largest threshold
+     * @throws IOException if the file cannot be read
+     */
+    private static long[] thresholdCounts(String filePath, int[] thresholds, boolean performTest, boolean memSaver,
+                                          int parseThreads, GridCache gridCache) throws IOException {
+        int maxThreshold = thresholds[thresholds.length - 1];
+        GridCache.Entry entry = gridCache == null ? null :
+                gridCache.lookup(Paths.get(filePath), parseThreads, performTest || !memSaver);
+        if (entry != null) {
+            long[] counts = new long[maxThreshold + 1];
+            for (int threshold = 0; threshold <= maxThreshold; threshold++) {
+                counts[threshold] = entry.count(threshold);
+            }
+            if (performTest) checkThresholdCounts(gridCache.flagValues(entry, -1), thresholds, counts);
+            return counts;
+        }
+        if (!performTest) {
+            try {
+                return ScanStreaming.thresholdCounts(Files.newBufferedReader(Paths.get(filePath)), maxThreshold);
+            } catch (IllegalStateException e) {
+                // the window's queues would not fit, the column index holds each flag once
+                logger.warn(e.getMessage());
+            }
+        }
+        FlagValues flagData = parseFile(Paths.get(filePath), parseThreads);
+        long[] counts = ScanStreaming.thresholdCounts(flagData, maxThreshold);
+        if (performTest) checkThresholdCounts(flagData, thresholds, counts);
+        return counts;
+    }
+
+    /**
+     * runs every engine at each threshold, logging an error for each count that differs,
+     * engines that would not fit in half the heap are skipped
+     * @param flagData grid dimensions and flag coordinates, its distanceThreshold is ignored
+     * @param thresholds the thresholds checked
+     * @param counts the counts indexed by distanceThreshold
+     */
+    private static void checkThresholdCounts(FlagValues flagData, int[] thresholds, long[] counts) {
+        Engine.Options options = new Engine.Options(false, 1, false);
+        long maxBytes = Runtime.getRuntime().maxMemory() / 2;
+        for (int threshold : thresholds) {
+            FlagValues thresholdData = new FlagValues(flagData.rowCount, flagData.colCount, "test",
+                    threshold, flagData.flags);
+            for (Engine engine : Engine.values()) {
+                if (!fits(engine, thresholdData, options, maxBytes)) continue;
+                long count = engine.count(thresholdData, options);
+                if (count != counts[threshold]) {
+                    logger.error("Threshold " + threshold + " count " + counts[threshold] + " and " + engine +
+                            " " + count + " counts do not match");
+                }
+            }
+        }
+    }
+
+    /**
+     * counts a grid file from the cache, reading it and tallying every distanceThreshold first on a miss
+     * with -perform_test the chosen engine, and every other engine, run on the cached flags
+     * and are checked against the cached count
+     * a miss while streaming is counted by the streaming scan and not added, adding loads the whole grid
+     * @param gridCache the cache of grids already read
+     * @param file the json file
+     * @param parseThreads the threads reading the file from a memory mapping on a miss, 0 to use GridReader
+     * @param performTest whether to check the count against the engines
+     * @param stream whether a grid not cached is streamed rather than loaded and added, -mem_saver
+     * @param options the engine settings
+     * @param denseEngine the engine used when the grid is dense
+     * @param sparseEngine the engine used when the grid is sparse
+     * @param costModel engine timings fitted by -calibrate, null to decide with arrayIsDense
+     * @return count of cells falling within distanceThreshold of true values in array,
+     *         -1 if the file has no distanceThreshold
+     * @throws IOException if the file or the cache cannot be read
+     */
+    private static long cachedCount(GridCache gridCache, Path file, int parseThreads, boolean performTest,
+                                    boolean stream, Engine.Options options, Engine denseEngine, Engine sparseEngine,
+                                    CostModel costModel) throws IOException {
+        GridCache.Entry entry = gridCache.lookup(file, parseThreads, !stream);
+        if (entry == null && stream) {
+            try {
+                return ScanStreaming.streamScan(Files.newBufferedReader(file));
+            } catch (IllegalArgumentException e) {
+                return -1;
+            }
+        }
+        if (entry == null) {
+            // the data array could not be found without GridReader, so the grid is not cached
+            FlagValues flagData = parseFile(file, parseThreads);
+            if (flagData.distanceThreshold < 0) return -1;
+            return getNeighbors(flagData, performTest, options,
+                    selectEngine(flagData, denseEngine, sparseEngine, costModel));
+        }
+        if (entry.distanceThreshold() < 0) return -1;
+        long neighborCount = entry.count(entry.distanceThreshold());
+        logger.info("cached count " + neighborCount + (entry.hit() ? " found in cache" : " added to cache"));
+        if (performTest) {
+            FlagValues flagData = gridCache.flagValues(entry, entry.distanceThreshold());
+            Engine engine = selectEngine(flagData, denseEngine, sparseEngine, costModel);
+            long engineCount = getNeighbors(flagData, true, options, engine);
+            if (engineCount != neighborCount) {
+                logger.error("Cached " + neighborCount + " and " + engine + " " + engineCount +
+                        " counts do not match");
+            }
+        }
+        return neighborCount;
+    }
+
+    /**
+     * reads a grid file with GridReader, or from a memory mapping with MappedGridReader
+     * @param file the json file
+     * @param parseThreads the threads MappedGridReader scans the data array on, 0 to use GridReader
+     * @return the flag values
+     * @throws IOException if the file cannot be read
+     */
+    static FlagValues parseFile(Path file, int parseThreads) throws IOException {
+        if (parseThreads > 0) return MappedGridReader.parseMappedNeighborData(file, parseThreads);
+        return GridReader.parseJsonNeighborData(Files.newBufferedReader(file));
+    }
+
+    /**
+     * counts a grid with the multi-pass scan, the engine that holds every cell's distance in its grid,
+     * writing the covered cells as the scan finishes them
+     * @param flagData grid dimensions, flag coordinates and distanceThreshold
+     * @param options the engine settings, -mem_saver writes each chunk as it is finished
+     * @param coverage the file written
+     * @param format how each row is written
+     * @return count of cells falling within distanceThreshold of true values in array
+     * @throws IOException if the file cannot be opened or finished
+     * @throws UncheckedIOException if a row cannot be written
+     */
+    @SuppressWarnings("try")
+    private static long coverageScan(FlagValues flagData, Engine.Options options, Path coverage,
+                                     GridWriter.Format format) throws IOException {
+        try (GridWriter writer = new GridWriter(coverage, format);
+             Metrics.Phase phase = Metrics.phase("count", Engine.MULTI_PASS.argName)) {
+            return ScanMultiPass.flagScan(flagData, options, writer);
+        }
+    }
+
+    /**
+     * commits the counters as a JFR event and writes the json report asked for with -metrics=path
+     * @param args the command line arguments
+     */
+    private static void reportMetrics(String[] args) {
+        Metrics.commit();
+        String report = argValue(args, "-metrics=", null);
+        if (report == null) return;
+        try {
+            Metrics.writeReport(Paths.get(report));
+        } catch (IOException e) {
+            System.out.println("Error writing metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * finds the value of a -name=value command line argument
+     * @param args the command line arguments
+     * @param prefix the argument name including the trailing =
+     * @param defaultValue returned when the argument is not present
+     * @return the text after the prefix, or defaultValue
+     */
+    private static String argValue(String[] args, String prefix, String defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) return arg.substring(prefix.length());
+        }
+        return defaultValue;
+    }
+
     /**
      * calculates whether array is "dense" meaning many overlaps and a fill
      * approach is likely to be slower than searching for neighbors due to many overlaps
@@ -90,12 +533,13 @@ public class Neighbors {
      * the flags were spaced evenly and none went off the grid
      * we then apply a tuning factor based on the relative speed of our dense vs sparse algorithms
      * to achieve best possible performance across varied grid densities
+     * used when there is no cost profile from -calibrate
      * @param gridSize size of a 2 dimensional array with flagged values
      * @param distanceThreshold a number of Manhattan Distance steps to walk for neighbors
      * @param arrayFlagCount count of flagged values in array
      * @return whether or not the array is considered dense
      */
-    private static boolean arrayIsDense (int gridSize, int distanceThreshold, int arrayFlagCount) {
+    private static boolean arrayIsDense (long gridSize, int distanceThreshold, int arrayFlagCount) {
         double density = 1.0 * arrayFlagCount * 2 * distanceThreshold * (distanceThreshold +1 ) / gridSize ;
         boolean isDense = density > DENSITY_TUNE_FACTOR;
         logger.info("distanceThreshold: " + distanceThreshold + " arrayFlagCount : " + arrayFlagCount
@@ -109,15 +553,58 @@ public class Neighbors {
         return isDense;
     }
 
+    /**
+     * chooses the engine for a grid
+     * the algorithm can be specified as part of the flag data, or
+     * determined by the cost profile or the density calculation
+     * @param flagData grid dimensions, flag count, distanceThreshold and density
+     * @param denseEngine the engine used when the grid is dense
+     * @param sparseEngine the engine used when the grid is sparse
+     * @param costModel engine timings fitted by -calibrate, null to decide with arrayIsDense
+     * @return the engine to count the grid with
+     */
+    @SuppressWarnings("try")
+    static Engine selectEngine(FlagValues flagData, Engine denseEngine, Engine sparseEngine,
+                               CostModel costModel) {
+        try (Metrics.Phase phase = Metrics.phase("select")) {
+            return chooseEngine(flagData, denseEngine, sparseEngine, costModel);
+        }
+    }
+
+    /**
+     * selectEngine without the timing
+     * @param flagData grid dimensions, flag count, distanceThreshold and density
+     * @param denseEngine the engine used when the grid is dense
+     * @param sparseEngine the engine used when the grid is sparse
+     * @param costModel engine timings fitted by -calibrate, null to decide with arrayIsDense
+     * @return the engine to count the grid with
+     */
+    private static Engine chooseEngine(FlagValues flagData, Engine denseEngine, Engine sparseEngine,
+                                       CostModel costModel) {
+        Engine engine;
+        if (flagData.density == FlagValues.Density.TEST && costModel != null) {
+            engine = costModel.fastest(flagData);
+            logger.info("cost profile selected " + engine);
+        } else if (flagData.density == FlagValues.Density.TEST) {
+            boolean isSparse = !arrayIsDense((long) flagData.colCount * flagData.rowCount,
+                    flagData.distanceThreshold, flagData.flagCount);
+            engine = isSparse ? sparseEngine : denseEngine;
+        } else {
+            boolean isSparse = flagData.density == FlagValues.Density.SPARSE;
+            logger.info ("assuming grid density is " + (isSparse ? "sparse" : "dense"));
+            engine = isSparse ? sparseEngine : denseEngine;
+        }
+        return engine;
+    }
+
     /**
      * find all neighbors of true values in 2 dimensional array within
      * distanceThreshold Manhattan Distance of a flagged (true) value
-     * the algorithm can be specified as part of the flag data, or
-     * determined by calling a function
-     * for dense arrays search for flags from every point via flagSearch
-     * for sparse arrays fill around every flag via flagFill
-     * both algorithms use a two dimensional array of integers to track progress and
-     * avoid double counting
+     * for dense arrays search for flags from every point via denseEngine
+     * for sparse arrays work around every flag via sparseEngine
+     * the grid algorithms use a two dimensional array of integers to track progress and
+     * avoid double counting, row_interval merges the column intervals of each row instead
+     * and rotated_union measures the area of the diamonds as rotated squares
      * @param flagData contains
      *                 a list of coordinates of flagged points
      *                 distanceThreshold a number of Manhattan Distance steps to walk for neighbors
@@ -125,33 +612,81 @@ public class Neighbors {
      *                 colCount grid column length
      *                 rowCount grid row length
      *                 flagCount count of flagged values
-     * @param performTest if a validation test should be performed
-     * @param memSaver if the dense algorithm should use a chunked based approach saving memory
+     * @param performTest if a validation test should be performed against every other engine,
+     *                    and against the serial scalar run of the primary engine when it is threaded or vector
+     * @param options if the dense algorithm should use a chunked based approach saving memory
+     *                and how many threads it may use
+     * @param engine the engine chosen by selectEngine
      * @return count of cells falling within distanceThreshold of true values in array
      */
-    private static int getNeighbors(FlagValues flagData,
-                                    boolean performTest,
-                                    boolean memSaver) {
-        boolean isSparse;
-        if (flagData.density == FlagValues.Density.TEST) {
-            isSparse = !arrayIsDense(flagData.colCount * flagData.rowCount,
-                    flagData.distanceThreshold, flagData.flagCount);
-        } else {
-            isSparse = flagData.density == FlagValues.Density.SPARSE;
-            logger.info ("assuming grid density is " + (isSparse ? "sparse" : "dense"));
-        }
+    static long getNeighbors(FlagValues flagData,
+                            boolean performTest,
+                            Engine.Options options,
+                            Engine engine) {
+        long neighborCount = engine.count(flagData, options);
+        if (performTest) countsMatch(flagData, options, engine, neighborCount);
+        return neighborCount;
+    }
 
-        int neighborCount = isSparse ? ScanFlagFill.flagFill(flagData) :
-                ScanMultiPass.flagScan(flagData, memSaver);
-        if (performTest) {
-            logger.info("executing test");
-            int altCount = isSparse ? ScanMultiPass.flagScan(flagData, memSaver) :
-                    ScanFlagFill.flagFill(flagData);
+    /**
+     * countsMatch with the alternates that fit in half the heap, the share NeighborGrid.create allows a flat grid
+     * @param flagData grid dimensions, flag coordinates and distanceThreshold
+     * @param options the options the primary engine ran with
+     * @param engine the primary engine
+     * @param neighborCount the count of the primary engine
+     * @return true if every count run matches
+     */
+    static boolean countsMatch(FlagValues flagData, Engine.Options options, Engine engine, long neighborCount) {
+        return countsMatch(flagData, options, engine, neighborCount, Runtime.getRuntime().maxMemory() / 2);
+    }
+
+    /**
+     * runs every other engine, and the serial scalar run of the primary engine when it is threaded or vector,
+     * logging an error for each count that differs from the primary count
+     * engines whose working arrays would not fit in maxBytes are skipped with a warning,
+     * so checking a grid only a tiled or streaming engine can hold does not run the heap out
+     * @param flagData grid dimensions, flag coordinates and distanceThreshold
+     * @param options the options the primary engine ran with
+     * @param engine the primary engine
+     * @param neighborCount the count of the primary engine
+     * @param maxBytes the heap an alternate may use
+     * @return true if every count run matches
+     */
+    static boolean countsMatch(FlagValues flagData, Engine.Options options, Engine engine, long neighborCount,
+                               long maxBytes) {
+        logger.info("executing test");
+        boolean countsMatch = true;
+        for (Engine alternate : Engine.values()) {
+            Engine.Options altOptions = options;
+            if (alternate == engine) {
+                // a threaded or vector primary is checked against its own serial scalar run
+                if (options.threads() <= 1 && !options.simd()) continue;
+                altOptions = new Engine.Options(options.memSaver(), 1, false, options.offHeap());
+            }
+            if (!fits(alternate, flagData, altOptions, maxBytes)) continue;
+            long altCount = alternate.count(flagData, altOptions);
             if (altCount != neighborCount) {
-                logger.error("Primary " + neighborCount +" and Alternate " + altCount +" counts do not match");
+                logger.error("Primary " + engine + " " + neighborCount + " and Alternate " + alternate +
+                        " " + altCount + " counts do not match");
+                countsMatch = false;
             }
-            logger.info("Alternate Count: " + altCount);
+            logger.info("Alternate " + alternate + " Count: " + altCount);
         }
-        return neighborCount;
+        return countsMatch;
+    }
+
+    /**
+     * @param engine an engine about to be run as a check
+     * @param flagData grid dimensions, flag coordinates and distanceThreshold
+     * @param options the options it would run with
+     * @param maxBytes the heap it may use
+     * @return whether its working arrays fit, logging a warning when they do not
+     */
+    private static boolean fits(Engine engine, FlagValues flagData, Engine.Options options, long maxBytes) {
+        long bytes = engine.heapBytes(flagData, options);
+        if (bytes <= maxBytes) return true;
+        logger.warn("skipping check with " + engine + ", it needs about " + bytes + " bytes and " +
+                maxBytes + " are available");
+        return false;
     }
 }
@@ -0,0 +1,87 @@
+package ManhattanDistance;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *  find all neighbors of true values in 2 dimensional array within
+ *  distanceThreshold Manhattan Distance of a flagged (true) value
+ *  by growing a bit mask of covered cells one step per pass
+ *  each row is packed into long words so a pass updates 64 cells per operation
+ *  and the mask needs one bit per cell rather than the int of ScanMultiPass
+ */
+class ScanBitset {
+    private static Logger logger = LoggerFactory.getLogger(ScanBitset.class);
+
+    /**
+     * Find all neighbors of true values in 2 dimensional array within
+     * distanceThreshold Manhattan Distance of a flagged (true) value
+     * Flags set their bit in the mask, then each of distanceThreshold passes
+     * ors every row with the rows above and below and with itself shifted one column each way.
+     * Exits early once a pass covers no new cells
+     * @param flagData an object containing
+     *                grid coordinates of flagged values set to true
+     *                distanceThreshold a number of Manhattan Distance steps to walk for neighbors
+     * @return count of all neighbors within distanceThreshold Manhattan Distance of a flagged (true) value
+     */
+    public static long bitsetScan(FlagValues flagData) {
+        logger.info("flagging with bitset scan");
+        int wordCount = (flagData.colCount + 63) >>> 6;
+        long[][] covered = new long[flagData.rowCount][wordCount];
+        Metrics.gridAllocated((long) flagData.rowCount * wordCount * Long.BYTES);
+        for (FlagList.Cursor flag = flagData.flags.cursor(); flag.next(); ) {
+            covered[flag.row()][flag.col() >>> 6] |= 1L << flag.col();
+        }
+        long lastWordMask = flagData.colCount % 64 == 0 ? -1L : (1L << flagData.colCount) - 1;
+        for (int i = 0; i < flagData.distanceThreshold; i++) {
+            if (!growOne(covered, lastWordMask)) {
+                logger.info("no cells added by scan " + (i + 1) + ", exiting");
+                break;
+            }
+        }
+        long neighborCount = 0;
+        for (int row = 0; row < covered.length; row++) {
+            for (int word = 0; word < wordCount; word++) {
+                neighborCount += Long.bitCount(covered[row][word]);
+            }
+        }
+        logger.info("bitset neighbor count " + neighborCount);
+        return neighborCount;
+    }
+
+    /**
+     * grows the mask by one Manhattan Distance step in place
+     * the rows before the update are kept in two scratch rows so every row reads the previous pass
+     * @param covered the mask of covered cells, one long array of words per row
+     * @param lastWordMask the valid column bits of the final word in each row
+     * @return whether any cell was newly covered
+     */
+    private static boolean growOne(long[][] covered, long lastWordMask) {
+        if (covered.length == 0 || covered[0].length == 0) return false;
+        int wordCount = covered[0].length;
+        long[] previousRow = new long[wordCount];
+        long[] currentRow = new long[wordCount];
+        boolean changed = false;
+        for (int row = 0; row < covered.length; row++) {
+            long[] target = covered[row];
+            System.arraycopy(target, 0, currentRow, 0, wordCount);
+            long[] below = row < covered.length - 1 ? covered[row + 1] : null;
+            for (int word = 0; word < wordCount; word++) {
+                long cur = currentRow[word];
+                // carry the edge bits across word boundaries for the left and right shifts
+                long fromLeft = (cur << 1) | (word > 0 ? currentRow[word - 1] >>> 63 : 0);
+                long fromRight = (cur >>> 1) | (word < wordCount - 1 ? currentRow[word + 1] << 63 : 0);
+                long grown = cur | fromLeft | fromRight;
+                if (row > 0) grown |= previousRow[word];
+                if (below != null) grown |= below[word];
+                if (word == wordCount - 1) grown &= lastWordMask;
+                changed |= grown != cur;
+                target[word] = grown;
+            }
+            long[] swap = previousRow;
+            previousRow = currentRow;
+            currentRow = swap;
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,87 @@
+package ManhattanDistance;
+
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * find all neighbors of true values in 2 dimensional array within
+ * distanceThreshold Manhattan Distance of a flagged (true) value
+ * by computing the Manhattan Distance from every cell to its nearest flag
+ * in a forward and a backward raster pass
+ * the cost is two sweeps of the grid whatever the distanceThreshold
+ */
+class ScanDistanceTransform {
+
+    private static Logger logger = LoggerFactory.getLogger(ScanDistanceTransform.class);
+
+    /**
+     * Find all neighbors of true values in 2 dimensional array within
+     * distanceThreshold Manhattan Distance of a flagged (true) value
+     * Every cell starts at a cap just past distanceThreshold, flags start at 0.
+     * The forward pass takes the smaller of each cell and one more than its upper and left neighbors,
+     * the backward pass does the same with its lower and right neighbors, which gives
+     * the exact Manhattan Distance to the nearest flag, or the cap if it is out of reach
+     * @param flagData an object containing
+     *                grid coordinates of flagged values set to true
+     *                distanceThreshold a number of Manhattan Distance steps to walk for neighbors
+     * @return count of all neighbors within distanceThreshold Manhattan Distance of a flagged (true) value
+     */
+    public static long distanceScan(FlagValues flagData) {
+        logger.info("flagging with distance transform");
+        int[][] distances = new int[flagData.rowCount][flagData.colCount];
+        Metrics.gridAllocated((long) flagData.rowCount * flagData.colCount * Integer.BYTES);
+        // no distance inside the grid exceeds rowCount + colCount, capping keeps the values from overflowing
+        int cap = Math.min(flagData.distanceThreshold, flagData.rowCount + flagData.colCount) + 1;
+        for (int row = 0; row < distances.length; row++) {
+            Arrays.fill(distances[row], cap);
+        }
+        for (FlagList.Cursor flag = flagData.flags.cursor(); flag.next(); ) {
+            distances[flag.row()][flag.col()] = 0;
+        }
+        forwardPass(distances);
+        long neighborCount = backwardPass(distances, cap);
+        logger.info("distance transform neighbor count " + neighborCount);
+        return neighborCount;
+    }
+
+    /**
+     * sweeps top left to bottom right carrying distances down and to the right
+     * @param distances the grid of distances to the nearest flag found so far
+     */
+    private static void forwardPass(int[][] distances) {
+        for (int row = 0; row < distances.length; row++) {
+            int[] cur = distances[row];
+            int[] above = row > 0 ? distances[row - 1] : null;
+            for (int col = 0; col < cur.length; col++) {
+                int distance = cur[col];
+                if (above != null && above[col] + 1 < distance) distance = above[col] + 1;
+                if (col > 0 && cur[col - 1] + 1 < distance) distance = cur[col - 1] + 1;
+                cur[col] = distance;
+            }
+        }
+    }
+
+    /**
+     * sweeps bottom right to top left carrying distances up and to the left
+     * and counts the cells whose final distance is within reach
+     * @param distances the grid of distances after the forward pass
+     * @param cap the value marking a cell as further than distanceThreshold from every flag
+     * @return count of cells with a distance less than cap
+     */
+    private static long backwardPass(int[][] distances, int cap) {
+        long neighborCount = 0;
+        for (int row = distances.length - 1; row >= 0; row--) {
+            int[] cur = distances[row];
+            int[] below = row < distances.length - 1 ? distances[row + 1] : null;
+            for (int col = cur.length - 1; col >= 0; col--) {
+                int distance = cur[col];
+                if (below != null && below[col] + 1 < distance) distance = below[col] + 1;
+                if (col < cur.length - 1 && cur[col + 1] + 1 < distance) distance = cur[col + 1] + 1;
+                cur[col] = distance;
+                neighborCount += distance < cap ? 1 : 0;
+            }
+        }
+        return neighborCount;
+    }
+}
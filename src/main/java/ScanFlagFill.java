@@ -1,5 +1,9 @@
 package ManhattanDistance;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,27 +17,199 @@ import org.slf4j.LoggerFactory;
 class ScanFlagFill {
 
     private static Logger logger = LoggerFactory.getLogger(ScanFlagFill.class);
+    /** side of the square blocks blockFill fills the grid in, one TiledGrid tile */
+    static final int BLOCK_SIZE = NeighborGrid.TiledGrid.TILE_SIZE;
+    /** thresholds from which the squares around flags cross enough blocks for blockFill to pay */
+    static final int BLOCK_MIN_THRESHOLD = 128;
 
     /**
      * find all neighbors of true values in 2 dimensional array within
      * distanceThreshold Manhattan Distance of a flagged (true) value
-     * by filling around every flag via flagNeighbors
+     * by filling around every flag via flagNeighbors, for large thresholds one block at a time via blockFill
      * @param flagData an object containing
      *                grid coordinates of flagged values set to true
      *                distanceThreshold a number of Manhattan Distance steps to walk for neighbors
      * @return count of cells falling within distanceThreshold of true values in array
      */
-    public static int flagFill(FlagValues flagData){
+    public static long flagFill(FlagValues flagData){
         logger.info("flagging with flag fill");
-        int[][] neighbors = new int[flagData.rowCount][flagData.colCount];
-        int neighborCount = 0;
-        for (int i = 0; i < flagData.flags.size(); i++) {
-            neighborCount += flagNeighbors(flagData.flags.get(i).row(),
-                    flagData.flags.get(i).col(), flagData.distanceThreshold, neighbors);
+        NeighborGrid neighbors = NeighborGrid.create(flagData.rowCount, flagData.colCount,
+                flagData.distanceThreshold + 1);
+        long neighborCount = 0;
+        if (flagData.distanceThreshold >= BLOCK_MIN_THRESHOLD) {
+            neighborCount = blockFill(flagData, 0, flagData.flags.size(), neighbors);
+        } else {
+            for (FlagList.Cursor flag = flagData.flags.cursor(); flag.next(); ) {
+                neighborCount += flagNeighbors(flag.row(), flag.col(), flagData.distanceThreshold, neighbors);
+            }
+        }
+        // a tiled grid only has its size once every flag has been filled
+        Metrics.gridAllocated(neighbors.bytes());
+        return neighborCount;
+    }
+
+    /**
+     * flagFill run on a pool of threads
+     * The grid is cut into row stripes at least 2 * distanceThreshold rows high,
+     * the fill around a flag reaches at most distanceThreshold rows past its own stripe
+     * so stripes two apart never touch the same cells.
+     * The even stripes are filled in parallel, then the odd ones, each worker walking its
+     * flags in order with the same flagNeighbors marking and skipping as the serial version,
+     * which keeps the count of newly flagged cells exact.
+     * For large thresholds each worker fills its stripe's flags with blockFill.
+     * Relies on the flags being sorted by row, as they are read
+     * @param flagData an object containing
+     *                grid coordinates of flagged values set to true
+     *                distanceThreshold a number of Manhattan Distance steps to walk for neighbors
+     * @param threads the number of threads to use, 1 runs on the calling thread
+     * @return count of cells falling within distanceThreshold of true values in array
+     */
+    public static long flagFill(FlagValues flagData, int threads) {
+        if (threads <= 1) return flagFill(flagData);
+        logger.info("flagging with parallel flag fill threads " + threads);
+        NeighborGrid neighbors = NeighborGrid.create(flagData.rowCount, flagData.colCount,
+                flagData.distanceThreshold + 1);
+        int stripeRows = Math.max(Math.max(2 * flagData.distanceThreshold, 1),
+                (flagData.rowCount + threads * 4 - 1) / (threads * 4));
+        int stripeCount = (flagData.rowCount + stripeRows - 1) / stripeRows;
+        int[] stripeFlagStart = new int[stripeCount + 1];
+        for (int stripe = 0; stripe < stripeCount; stripe++) {
+            stripeFlagStart[stripe] = flagData.flags.firstIndexAtRow(stripe * stripeRows);
+        }
+        stripeFlagStart[stripeCount] = flagData.flags.size();
+        logger.info("stripes " + stripeCount + " of rows " + stripeRows);
+
+        long neighborCount = 0;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            for (int parity = 0; parity < 2; parity++) {
+                ArrayList<ForkJoinTask<Long>> tasks = new ArrayList<>();
+                for (int stripe = parity; stripe < stripeCount; stripe += 2) {
+                    final int firstFlag = stripeFlagStart[stripe];
+                    final int lastFlag = stripeFlagStart[stripe + 1];
+                    tasks.add(pool.submit(() -> {
+                        if (flagData.distanceThreshold >= BLOCK_MIN_THRESHOLD) {
+                            return blockFill(flagData, firstFlag, lastFlag, neighbors);
+                        }
+                        long flaggedCount = 0;
+                        for (FlagList.Cursor flag = flagData.flags.cursor(firstFlag);
+                             flag.next() && flag.index() < lastFlag; ) {
+                            flaggedCount += flagNeighbors(flag.row(), flag.col(),
+                                    flagData.distanceThreshold, neighbors);
+                        }
+                        return flaggedCount;
+                    }));
+                }
+                for (ForkJoinTask<Long> task : tasks) {
+                    neighborCount += task.join();
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        Metrics.gridAllocated(neighbors.bytes());
+        return neighborCount;
+    }
+
+    /**
+     * fills around the flags firstFlag to lastFlag one block of the grid at a time
+     * rather than one flag at a time, the square around each flag spans 2 * distanceThreshold + 1 rows,
+     * so consecutive flags would each walk more rows than stay in cache
+     * each BLOCK_SIZE square block is instead filled for every flag whose diamond reaches it
+     * before moving to the next, so its cells stay in cache for all of them
+     * the flags reaching a block row are consecutive as flags are sorted by row, they are handed
+     * to the block columns their diamonds reach, keeping row order within each block column
+     * each block is filled by flagNeighbors clipped to the block, so the marking and
+     * distanceRemaining skipping are unchanged and a cell is still only counted when first marked
+     * @param flagData the flags and distanceThreshold
+     * @param firstFlag the index of the first flag filled
+     * @param lastFlag the index after the last flag filled
+     * @param neighbors the grid used for tracking what is getting set to true
+     * @return count of cells set to true by these flags (not counting those already true)
+     */
+    private static long blockFill(FlagValues flagData, int firstFlag, int lastFlag, NeighborGrid neighbors) {
+        if (firstFlag >= lastFlag) return 0;
+        final FlagList flags = flagData.flags;
+        final int distanceThreshold = flagData.distanceThreshold;
+        final int minRow = Math.max(flags.row(firstFlag) - distanceThreshold, 0);
+        final int maxRow = (int) Math.min(neighbors.rowCount,
+                (long) flags.row(lastFlag - 1) + distanceThreshold + 1);
+        final int blockCols = (neighbors.colCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        // flag indexes by block column, blockStart[c] to blockStart[c + 1] for column c
+        int[] blockStart = new int[blockCols + 1];
+        int[] blockFlags = new int[0];
+        long neighborCount = 0;
+        int blockCount = 0;
+        for (int blockRow = minRow - minRow % BLOCK_SIZE; blockRow < maxRow; blockRow += BLOCK_SIZE) {
+            final int blockRowEnd = Math.min(maxRow, blockRow + BLOCK_SIZE);
+            final int first = Math.max(firstFlag, flags.firstIndexAtRow(blockRow - distanceThreshold));
+            final int last = Math.min(lastFlag, flags.firstIndexAtRow(
+                    (int) Math.min(Integer.MAX_VALUE, (long) blockRowEnd + distanceThreshold)));
+            if (first >= last) continue;
+            // counted then placed from the last flag back, leaving each block column's flags in row order
+            Arrays.fill(blockStart, 0);
+            for (int i = first; i < last; i++) {
+                int col = flags.col(i);
+                int colsLeft = distanceThreshold - rowsOutside(flags.row(i), blockRow, blockRowEnd);
+                int endBlockCol = (int) (Math.min(neighbors.colCount - 1L, (long) col + colsLeft) / BLOCK_SIZE);
+                for (int blockCol = Math.max(col - colsLeft, 0) / BLOCK_SIZE; blockCol <= endBlockCol; blockCol++) {
+                    blockStart[blockCol]++;
+                }
+            }
+            for (int blockCol = 1; blockCol <= blockCols; blockCol++) {
+                blockStart[blockCol] += blockStart[blockCol - 1];
+            }
+            if (blockFlags.length < blockStart[blockCols]) {
+                blockFlags = new int[Math.max(blockStart[blockCols], blockFlags.length * 2)];
+            }
+            for (int i = last - 1; i >= first; i--) {
+                int col = flags.col(i);
+                int colsLeft = distanceThreshold - rowsOutside(flags.row(i), blockRow, blockRowEnd);
+                int endBlockCol = (int) (Math.min(neighbors.colCount - 1L, (long) col + colsLeft) / BLOCK_SIZE);
+                for (int blockCol = Math.max(col - colsLeft, 0) / BLOCK_SIZE; blockCol <= endBlockCol; blockCol++) {
+                    blockFlags[--blockStart[blockCol]] = i;
+                }
+            }
+            for (int blockCol = 0; blockCol < blockCols; blockCol++) {
+                final int startCol = blockCol * BLOCK_SIZE;
+                final int endCol = Math.min(neighbors.colCount, startCol + BLOCK_SIZE);
+                final int end = blockStart[blockCol + 1];
+                if (blockStart[blockCol] < end) blockCount++;
+                for (int j = blockStart[blockCol]; j < end; j++) {
+                    int i = blockFlags[j];
+                    neighborCount += flagNeighbors(flags.row(i), flags.col(i), distanceThreshold, neighbors,
+                            blockRow, blockRowEnd, startCol, endCol);
+                }
+            }
         }
+        logger.debug("filled blocks " + blockCount);
         return neighborCount;
     }
 
+    /**
+     * @param row a grid row
+     * @param startRow the first row of a block
+     * @param endRow the row after the last row of the block
+     * @return how many rows the row is above or below the block, 0 within it
+     */
+    private static int rowsOutside(int row, int startRow, int endRow) {
+        return row < startRow ? startRow - row : row >= endRow ? row - endRow + 1 : 0;
+    }
+
+    /**
+     * flagNeighbors over the whole grid
+     * @param targetRow target location row
+     * @param targetCol target location column
+     * @param distanceThreshold the maximum Manhattan Distance to check 0 being self
+     * @param neighbors the grid used for tracking what is getting set to true
+     * @return count of all set to true (not counting those already true)
+     */
+    private static long flagNeighbors(int targetRow, int targetCol,
+                                     int distanceThreshold, NeighborGrid neighbors) {
+        return flagNeighbors(targetRow, targetCol, distanceThreshold, neighbors,
+                0, neighbors.rowCount, 0, neighbors.colCount);
+    }
+
     /**
      * Set all neighbors within distanceThreshold of the target Manhattan Distance to true
      * Walks the square around the location of size distanceThreshold,
@@ -47,33 +223,42 @@ class ScanFlagFill {
      * @param targetCol target location column
      * @param distanceThreshold the maximum Manhattan Distance to check 0 being self
      * @param neighbors the grid used for tracking what is getting set to true
+     * @param startRow the first row filled
+     * @param endRow the row after the last row filled
+     * @param startCol the first column filled
+     * @param endCol the column after the last column filled, skips stop here
      * @return count of all set to true (not counting those already true)
      */
-    private static int flagNeighbors(int targetRow, int targetCol,
-                                     int distanceThreshold, int[][] neighbors) {
-        int flaggedCount = 0;
-        final int minRow = Math.max(targetRow-distanceThreshold, 0);
-        final int maxRow = Math.min(neighbors.length, targetRow + distanceThreshold+1);
-        final int minCol = Math.max(targetCol-distanceThreshold,0);
-        final int maxCol = Math.min(neighbors[0].length, targetCol + distanceThreshold+1);
-        logger.debug("flagNeighbors " + targetRow + "," + targetCol + " checking " + minRow + ","
-                + minCol + " - " + (maxRow -1) + "," + (maxCol-1));
+    private static long flagNeighbors(int targetRow, int targetCol, int distanceThreshold,
+                                      NeighborGrid neighbors, int startRow, int endRow, int startCol, int endCol) {
+        long flaggedCount = 0;
+        final int minRow = Math.max(targetRow-distanceThreshold, startRow);
+        final int maxRow = (int) Math.min(endRow, (long) targetRow + distanceThreshold+1);
+        final int minCol = Math.max(targetCol-distanceThreshold, startCol);
+        final int maxCol = (int) Math.min(endCol, (long) targetCol + distanceThreshold+1);
+        int visitedCount = 0;
+        int skippedCount = 0;
         for (int row = minRow; row < maxRow; row++) {
+            final long rowStart = neighbors.index(row, 0);
             for (int col = minCol; col < maxCol; col++) {
+                visitedCount++;
                 int manhattanDistance = Math.abs(col-targetCol) + Math.abs(row-targetRow);
-                logger.debug("target " + targetRow + "," + targetCol + " checking " + row + "," + col + " distance " + manhattanDistance + " threshold " + distanceThreshold + " skip ? " + (manhattanDistance > distanceThreshold) + " neighborVal " + neighbors[row][col]);
                 if (manhattanDistance > distanceThreshold) continue;
-                int neighborVal = neighbors[row][col];
+                int neighborVal = neighbors.get(rowStart + col);
                 int distanceRemaining = distanceThreshold - manhattanDistance + 1;
                 if (neighborVal < distanceRemaining) {
-                    neighbors[row][col]=distanceRemaining;
+                    neighbors.set(rowStart + col, distanceRemaining);
                     flaggedCount+= neighborVal == 0 ? 1 : 0;
                 }
                 else if (neighborVal > 1) {
+                    skippedCount += Math.min(neighborVal - 1, maxCol - 1 - col);
                     col += neighborVal - 1;
                 }
             }
         }
+        // added once per call, per cell counting stays in locals
+        Metrics.cellsVisited.add(visitedCount);
+        Metrics.cellsSkipped.add(skippedCount);
         return flaggedCount;
     }
 }
@@ -1,6 +1,9 @@
 package ManhattanDistance;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,8 +16,156 @@ import org.slf4j.LoggerFactory;
  */
 class ScanMultiPass {
     public static final int MEM_SAVER_ROWS = 500;
+    /** whether the Vector API module is loaded so ScanVector can be used */
+    public static final boolean VECTOR_AVAILABLE =
+            ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
     private static Logger logger = LoggerFactory.getLogger(ScanMultiPass.class);
-    private record ScanRowsResult(int neighborCount, int flagIndex) {}
+    /** the rows and columns a side of the tiles the serial scalar scan tracks */
+    public static final int TILE_SIZE = 64;
+    private record ScanRowsResult(long neighborCount, int flagIndex) {}
+
+    /**
+     * a coarse summary of the grid in square tiles of TILE_SIZE cells a side
+     * a pass only marks cells beside cells the pass before marked, so it only scans the tiles
+     * the pass before marked cells in and the tiles beside them, and a tile whose cells
+     * are all marked is never scanned again. Clustered grids then cost their moving front
+     * rather than the whole grid on every pass
+     */
+    private static final class ActiveTiles {
+        final int tileRows;
+        final int tileCols;
+        final int rowCount;
+        final int colCount;
+        /** the tiles holding cells the last pass marked, or flags before the first pass */
+        boolean[] active;
+        boolean[] nextActive;
+        /** marked cells per tile */
+        final int[] marked;
+        /** whether the first row of tiles holds the last finished row of the chunk before,
+         *  whose cells become sources on different passes, so it is scanned beside on every pass */
+        final boolean carriedRow;
+
+        /**
+         * @param rowCount the rows scanned
+         * @param colCount grid column count
+         * @param carriedRow whether row 0 was carried over from the chunk before
+         */
+        ActiveTiles(int rowCount, int colCount, boolean carriedRow) {
+            this.rowCount = rowCount;
+            this.colCount = colCount;
+            this.tileRows = (rowCount + TILE_SIZE - 1) / TILE_SIZE;
+            this.tileCols = (colCount + TILE_SIZE - 1) / TILE_SIZE;
+            this.active = new boolean[tileRows * tileCols];
+            this.nextActive = new boolean[tileRows * tileCols];
+            this.marked = new int[tileRows * tileCols];
+            this.carriedRow = carriedRow;
+        }
+
+        /**
+         * records a flag placed before the first pass
+         * @param row the grid row
+         * @param col the grid column
+         */
+        void mark(int row, int col) {
+            int tile = (row / TILE_SIZE) * tileCols + col / TILE_SIZE;
+            marked[tile]++;
+            active[tile] = true;
+        }
+
+        /**
+         * records the marked cells of a row carried over from the chunk before
+         * @param neighbors the grid
+         * @param row the carried row
+         */
+        void markRow(NeighborGrid neighbors, int row) {
+            long rowStart = neighbors.index(row, 0);
+            for (int col = 0; col < colCount; col++) {
+                if (neighbors.get(rowStart + col) > 0) marked[(row / TILE_SIZE) * tileCols + col / TILE_SIZE]++;
+            }
+        }
+
+        /**
+         * @param tileRow the tile row
+         * @param tileCol the tile column
+         * @return the cell count of the tile, smaller at the bottom and right edges
+         */
+        int cells(int tileRow, int tileCol) {
+            return (Math.min(rowCount, (tileRow + 1) * TILE_SIZE) - tileRow * TILE_SIZE) *
+                    (Math.min(colCount, (tileCol + 1) * TILE_SIZE) - tileCol * TILE_SIZE);
+        }
+
+        /**
+         * @param tileRow the tile row
+         * @param tileCol the tile column
+         * @return whether a pass can mark cells in the tile
+         */
+        boolean scanNeeded(int tileRow, int tileCol) {
+            int tile = tileRow * tileCols + tileCol;
+            if (marked[tile] == cells(tileRow, tileCol)) return false;
+            return active[tile] || (carriedRow && tileRow == 0) ||
+                    (tileRow > 0 && active[tile - tileCols]) ||
+                    (tileRow < tileRows - 1 && active[tile + tileCols]) ||
+                    (tileCol > 0 && active[tile - 1]) ||
+                    (tileCol < tileCols - 1 && active[tile + 1]);
+        }
+
+        /**
+         * makes the tiles marked in this pass the active tiles of the next
+         */
+        void endPass() {
+            boolean[] passActive = active;
+            active = nextActive;
+            nextActive = passActive;
+            Arrays.fill(nextActive, false);
+        }
+    }
+
+    /**
+     * the row bands a parallel pass is split into, one per pool thread, and a halo per band
+     * holding copies of the rows directly above and below it
+     * the halos are made once and refilled by copyHalos before any band of a pass is submitted,
+     * so no band reads a row of the grid another band is writing during the pass
+     */
+    private static final class RowBands {
+        /** the first row of each band, then rowCount */
+        private final int[] bandStarts;
+        /** copies of the row above each band, null for a band at the top of the grid */
+        private final NeighborGrid[] haloAbove;
+        /** copies of the row below each band, null for a band at the bottom of the grid */
+        private final NeighborGrid[] haloBelow;
+
+        /**
+         * @param neighbors the grid scanned
+         * @param rowCount the rows scanned, the grid rows could be more
+         * @param parallelism the pool threads
+         */
+        RowBands(NeighborGrid neighbors, int rowCount, int parallelism) {
+            int bandCount = Math.max(1, Math.min(parallelism, rowCount));
+            int bandRows = (rowCount + bandCount - 1) / bandCount;
+            bandCount = (rowCount + bandRows - 1) / bandRows;
+            bandStarts = new int[bandCount + 1];
+            haloAbove = new NeighborGrid[bandCount];
+            haloBelow = new NeighborGrid[bandCount];
+            for (int band = 0; band < bandCount; band++) {
+                bandStarts[band] = band * bandRows;
+                int bandEnd = Math.min(rowCount, bandStarts[band] + bandRows);
+                if (bandStarts[band] > 0) haloAbove[band] = neighbors.copyRows(bandStarts[band] - 1, 1);
+                if (bandEnd < neighbors.rowCount) haloBelow[band] = neighbors.copyRows(bandEnd, 1);
+            }
+            bandStarts[bandCount] = rowCount;
+        }
+
+        /**
+         * refills every halo from the grid as the pass before left it
+         * @param neighbors the grid scanned
+         */
+        void copyHalos(NeighborGrid neighbors) {
+            for (int band = 0; band < haloAbove.length; band++) {
+                if (haloAbove[band] != null) neighbors.copyRowTo(bandStarts[band] - 1, haloAbove[band], 0);
+                if (haloBelow[band] != null) neighbors.copyRowTo(bandStarts[band + 1], haloBelow[band], 0);
+            }
+        }
+    }
 
     /**
      *  runs and returns data from either the standard flagScan algorithm
@@ -25,45 +176,137 @@ class ScanMultiPass {
      * @param memSaver whetheer to run the memory saving version
      * @return result of either the base flagScan or memory saving version
      */
-    public static int flagScan(FlagValues flagData, boolean memSaver) {
+    public static long flagScan(FlagValues flagData, boolean memSaver) {
         return memSaver ? flagScan(flagData, MEM_SAVER_ROWS) : flagScan (flagData);
     }
 
+    /**
+     *  runs either the standard flagScan algorithm or the memory saving version
+     *  optionally splitting each pass into row bands that run on a pool of threads
+     *  and updating each row with the Vector API
+     * @param flagData an object containing
+     *                grid coordinates of flagged values set to true
+     *                distanceThreshold a number of Manhattan Distance steps to walk for neighbors
+     * @param options whether to run the memory saving version, the number of threads to use,
+     *                whether to use the Vector API when it is available and whether the grid is off heap
+     * @return result of either the base flagScan or memory saving version
+     */
+    public static long flagScan(FlagValues flagData, Engine.Options options) {
+        return flagScan(flagData, options, null);
+    }
+
+    /**
+     *  flagScan with options, also writing every finished row of the grid
+     *  to a GridWriter, row by row as the memory saving version finishes each chunk
+     * @param flagData an object containing
+     *                grid coordinates of flagged values set to true
+     *                distanceThreshold a number of Manhattan Distance steps to walk for neighbors
+     * @param options whether to run the memory saving version, the number of threads to use,
+     *                whether to use the Vector API when it is available and whether the grid is off heap
+     * @param writer the writer the covered cells are written to, null to only count
+     * @return result of either the base flagScan or memory saving version
+     */
+    public static long flagScan(FlagValues flagData, Engine.Options options, GridWriter writer) {
+        boolean simd = options.simd() && VECTOR_AVAILABLE;
+        if (options.simd() && !simd) {
+            logger.warn("Vector API not available, add --add-modules jdk.incubator.vector, using scalar scan");
+        }
+        if (writer != null) writer.start(flagData.colCount, flagData.distanceThreshold);
+        ForkJoinPool pool = options.threads() > 1 ? new ForkJoinPool(options.threads()) : null;
+        try {
+            return options.memSaver() ? flagScan(flagData, MEM_SAVER_ROWS, pool, simd, options.offHeap(), writer) :
+                    flagScan(flagData, pool, simd, options.offHeap(), writer);
+        } finally {
+            if (pool != null) pool.shutdown();
+        }
+    }
+
     /**
      * Find all neighbors of true values in 2 dimensional array within
      * distanceThreshold Manhattan Distance of a flagged (true) value
      * For each flagged element we add a value distanceThreshold + 1 to the neighbors array
      * in the corresponding location
-     * then we make repeated passes flagScanOne flagging all neighbors of flagged values
+     * then we make repeated passes flagScanTiles flagging all neighbors of flagged values
      * If all values in the array flagged exit
      * @param flagData an object containing
      *                grid coordinates of flagged values set to true
      *                distanceThreshold a number of Manhattan Distance steps to walk for neighbors
      * @return count of all neighbors within distanceThreshold Manhattan Distance of a flagged (true) value
      */
-    public static int flagScan(FlagValues flagData) {
+    public static long flagScan(FlagValues flagData) {
+        return flagScan(flagData, null, false, false, null);
+    }
+
+    /**
+     * the standard flagScan with each pass split into row bands run on a pool
+     * @param flagData an object containing
+     *                grid coordinates of flagged values set to true
+     *                distanceThreshold a number of Manhattan Distance steps to walk for neighbors
+     * @param pool the pool running the row bands, or null to scan on the calling thread
+     * @param simd whether rows are updated with ScanVector
+     * @param offHeap whether the grid is held in native memory
+     * @param writer the writer the finished grid is written to, null to only count
+     * @return count of all neighbors within distanceThreshold Manhattan Distance of a flagged (true) value
+     */
+    private static long flagScan(FlagValues flagData, ForkJoinPool pool, boolean simd, boolean offHeap,
+                                 GridWriter writer) {
         logger.info("flagging with scan multipass");
-        int[][] neighbors = new int[flagData.rowCount][flagData.colCount];
+        NeighborGrid neighbors = createGrid(flagData.rowCount, flagData.colCount,
+                flagData.distanceThreshold, simd, offHeap);
+        try {
+            long neighborCount = flagScanGrid(flagData, neighbors, pool, vectorGrid(neighbors, simd));
+            if (writer != null) writeRows(writer, neighbors, 0, neighbors.rowCount);
+            return neighborCount;
+        } finally {
+            neighbors.close();
+        }
+    }
+
+    /**
+     * flags every cell of the grid within distanceThreshold of a flag, pass by pass
+     * @param flagData an object containing
+     *                grid coordinates of flagged values set to true
+     *                distanceThreshold a number of Manhattan Distance steps to walk for neighbors
+     * @param neighbors a zeroed grid the size of the data
+     * @param pool the pool running the row bands, or null to scan on the calling thread
+     * @param simd whether rows are updated with ScanVector
+     * @return count of all neighbors within distanceThreshold Manhattan Distance of a flagged (true) value
+     */
+    @SuppressWarnings("try")
+    private static long flagScanGrid(FlagValues flagData, NeighborGrid neighbors, ForkJoinPool pool,
+                                     boolean simd) {
         StringBuilder sb = new StringBuilder();
         boolean hasError = false;
-        int neighborCount = 0;
-        int gridSize = neighbors.length * neighbors[0].length;
-        for (int i = 0; i < flagData.flags.size(); i++) {
-            neighbors[flagData.flags.get(i).row()][flagData.flags.get(i).col()] = flagData.distanceThreshold + 1;
+        long neighborCount = 0;
+        long gridSize = (long) neighbors.rowCount * neighbors.colCount;
+        ActiveTiles tiles = pool == null && !simd ? new ActiveTiles(neighbors.rowCount, neighbors.colCount, false) :
+                null;
+        RowBands bands = pool != null ? new RowBands(neighbors, neighbors.rowCount, pool.getParallelism()) : null;
+        for (FlagList.Cursor flag = flagData.flags.cursor(); flag.next(); ) {
+            neighbors.set(neighbors.index(flag.row(), flag.col()), flagData.distanceThreshold + 1);
+            if (tiles != null) tiles.mark(flag.row(), flag.col());
         }
         neighborCount = flagData.flags.size();
 
         logger.info("initial array neighbor count "+ neighborCount);
-        logger.debug(GridPrint.printArray(neighbors));
+        if (logger.isDebugEnabled()) logger.debug(GridPrint.printArray(neighbors));
         for (int i = flagData.distanceThreshold; i > 0; i--) {
-            neighborCount+= flagScanOne(neighbors, i);
+            try (Metrics.Phase phase = Metrics.phase("pass", flagData.distanceThreshold - i + 1)) {
+                neighborCount+= pool != null ? flagScanOneParallel(neighbors, i, bands, pool, simd) :
+                        simd ? ScanVector.flagScanOneForRows((NeighborGrid.IntGrid) neighbors, i, neighbors.rowCount) :
+                        flagScanTiles(neighbors, i, tiles);
+            }
+            Metrics.passesRun.increment();
             logger.info("after scan " + (flagData.distanceThreshold - i + 1) + " neighbor count "+ neighborCount);
-            logger.debug(GridPrint.printArray(neighbors));
+            if (logger.isDebugEnabled()) logger.debug(GridPrint.printArray(neighbors));
             if (neighborCount == gridSize) {
                 logger.info("all elements flagged, exiting");
+                Metrics.passesSaved.add(i - 1);
                 break;
             }
         }
+        // a tiled grid only has its size once the passes have run
+        Metrics.gridAllocated(neighbors.bytes());
         return neighborCount;
     }
 
@@ -81,17 +324,61 @@ class ScanMultiPass {
      *                with a portion of the data at a time
      * @return count of all neighbors within distanceThreshold Manhattan Distance of a flagged (true) value
      */
-    public static int flagScan(FlagValues flagData, int maxRows) {
+    public static long flagScan(FlagValues flagData, int maxRows) {
+        return flagScan(flagData, maxRows, null, false, false, null);
+    }
+
+    /**
+     * the memory saving flagScan with each pass split into row bands run on a pool
+     * @param flagData an object containing
+     *                grid coordinates of flagged values set to true
+     *                distanceThreshold a number of Manhattan Distance steps to walk for neighbors
+     * @param maxRows the row size of the array used for calculations
+     * @param pool the pool running the row bands, or null to scan on the calling thread
+     * @param simd whether rows are updated with ScanVector
+     * @param offHeap whether the grid is held in native memory
+     * @param writer the writer each chunk's finished rows are written to, null to only count
+     * @return count of all neighbors within distanceThreshold Manhattan Distance of a flagged (true) value
+     */
+    private static long flagScan(FlagValues flagData, int maxRows, ForkJoinPool pool, boolean simd,
+                                 boolean offHeap, GridWriter writer) {
+        // each chunk discards distanceThreshold rows and keeps one, it has to keep at least one more
+        maxRows = (int) Math.max(maxRows, Math.min(Integer.MAX_VALUE, 2L * flagData.distanceThreshold + 2));
         logger.info("flagging with scan multipass maxRows " + maxRows);
+        if (flagData.rowCount <= maxRows) return flagScan(flagData, pool, simd, offHeap, writer);
+        NeighborGrid neighbors = createGrid(Math.min(flagData.rowCount, maxRows), flagData.colCount,
+                flagData.distanceThreshold, simd, offHeap);
+        try {
+            return flagScanChunks(flagData, neighbors, maxRows, pool, vectorGrid(neighbors, simd), writer);
+        } finally {
+            neighbors.close();
+        }
+    }
+
+    /**
+     * flags the data a chunk of maxRows rows at a time in a reused grid
+     * @param flagData an object containing
+     *                grid coordinates of flagged values set to true
+     *                distanceThreshold a number of Manhattan Distance steps to walk for neighbors
+     * @param neighbors a zeroed grid of maxRows rows
+     * @param maxRows the row size of the array used for calculations
+     * @param pool the pool running the row bands, or null to scan on the calling thread
+     * @param simd whether rows are updated with ScanVector
+     * @param writer the writer each chunk's finished rows are written to, null to only count
+     * @return count of all neighbors within distanceThreshold Manhattan Distance of a flagged (true) value
+     */
+    @SuppressWarnings("try")
+    private static long flagScanChunks(FlagValues flagData, NeighborGrid neighbors, int maxRows,
+                                       ForkJoinPool pool, boolean simd, GridWriter writer) {
         StringBuilder sb = new StringBuilder();
         boolean hasError = false;
-        int neighborCount = 0;
+        long neighborCount = 0;
         int startRow = 0;
-        int maxRowsForGrid = Math.min(flagData.rowCount, maxRows);
-        int[][] neighbors = new int[maxRowsForGrid][flagData.colCount];
+        int maxRowsForGrid = neighbors.rowCount;
         int flagStartIndex = 0;
         int neighborOffset = 0;
-        while (startRow < flagData.rowCount - 1) {
+        boolean lastChunk = false;
+        while (!lastChunk) {
             if (startRow > 0) {
                 logger.debug("calling neighborShift with startRow: " +
                         startRow + " discardRows " + (flagData.distanceThreshold));
@@ -104,8 +391,16 @@ class ScanMultiPass {
                     " startRow = " + startRow + " maxRows = " + curMaxRows +
                     " lastNonDiscardedRow = " + lastNonDiscardedRow +
                     " maxRowsForGrid " + maxRowsForGrid);
-            ScanRowsResult rowResult = flagScanRows(flagData, neighbors, neighborOffset,
-                    startRow, curMaxRows, lastNonDiscardedRow, flagStartIndex);
+            ScanRowsResult rowResult;
+            try (Metrics.Phase phase = Metrics.phase("chunk", startRow)) {
+                rowResult = flagScanRows(flagData, neighbors, neighborOffset,
+                        startRow, curMaxRows, lastNonDiscardedRow, flagStartIndex, pool, simd);
+            }
+            // the chunk reaching the last row has no rows left to discard
+            lastChunk = startRow + curMaxRows - neighborOffset >= flagData.rowCount;
+            // the first row is the previous chunk's last finished row, the discarded rows are not finished
+            if (writer != null) writeRows(writer, neighbors, neighborOffset,
+                    lastChunk ? curMaxRows : maxRowsForGrid - flagData.distanceThreshold);
             startRow += maxRows - (flagData.distanceThreshold) - neighborOffset;
             logger.debug ("new start row " + startRow);
             logger.debug ("flagScan setting flagStartIndex " + rowResult.flagIndex);
@@ -113,57 +408,207 @@ class ScanMultiPass {
             flagStartIndex = rowResult.flagIndex;
             neighborOffset = 1;
         }
+        Metrics.gridAllocated(neighbors.bytes());
         return neighborCount;
     }
 
     /**
-     * scan entire two dimensional array
+     * creates the grid for a scan, cells only need to hold distanceThreshold + 1
+     * the Vector API scan works on int cells
+     * @param rowCount grid row count
+     * @param colCount grid column count
+     * @param distanceThreshold the largest marking is distanceThreshold + 1
+     * @param simd whether rows are updated with ScanVector
+     * @param offHeap whether the grid is held in native memory, or a mapped file when it is larger than RAM
+     * @return a zeroed grid
+     */
+    private static NeighborGrid createGrid(int rowCount, int colCount, int distanceThreshold, boolean simd,
+                                           boolean offHeap) {
+        int maxValue = simd ? Integer.MAX_VALUE : distanceThreshold + 1;
+        NeighborGrid neighbors = offHeap ? NeighborGrid.createOffHeap(rowCount, colCount, maxValue) :
+                NeighborGrid.create(rowCount, colCount, maxValue);
+        logger.info("grid cells use bytes: " + neighbors.bytes());
+        return neighbors;
+    }
+
+    /**
+     * the Vector API scan reads the cells of one int array, tiled and off heap grids are scanned with scalar code
+     * @param neighbors the grid created for the scan
+     * @param simd whether rows were to be updated with ScanVector
+     * @return whether rows are updated with ScanVector
+     */
+    private static boolean vectorGrid(NeighborGrid neighbors, boolean simd) {
+        if (!simd || neighbors instanceof NeighborGrid.IntGrid) return simd;
+        logger.warn("grid is not one int array, using scalar scan");
+        return false;
+    }
+
+    /**
+     * writes finished grid rows, a cell holding distanceThreshold + 1 - d is d from its nearest flag
+     * @param writer the writer the rows go to
+     * @param neighbors the grid
+     * @param startRow the first grid row written
+     * @param endRow the grid row after the last row written
+     */
+    @SuppressWarnings("try")
+    private static void writeRows(GridWriter writer, NeighborGrid neighbors, int startRow, int endRow) {
+        try (Metrics.Phase phase = Metrics.phase("write")) {
+            writer.writeRows(neighbors, startRow, endRow);
+        }
+    }
+
+    /**
+     * scan the tiles of the two dimensional array a pass can change
      * for each point if it does not have value set check if there is a neighbor that is flagged.
      * Set the value of each cell to one less than the value of its neighbor
      * @param neighbors the grid used for tracking what is getting set to true
      * @param distanceThreshold the maximum Manhattan Distance to check 0 being self
+     * @param tiles the tiles marked by the pass before, covering the rows scanned
      * @return the amount of newly flagged cells
      */
-    private static int flagScanOne(int[][] neighbors, int distanceThreshold) {
-        boolean hasError = false;
-        int neighborCount = 0;
-        for (int row = 0; row < neighbors.length; row++) {
-            for (int col = 0; col < neighbors[row].length; col++) {
-                if (neighbors[row][col] > distanceThreshold) continue;
-                boolean neighborFound = (row > 0 && neighbors[row-1][col] == distanceThreshold + 1) ||
-                        (row < neighbors.length -1 && neighbors[row+1][col] == distanceThreshold + 1) ||
-                        (col > 0 && neighbors[row][col-1] == distanceThreshold + 1) ||
-                        (col < neighbors[row].length -1 && neighbors[row][col+1]  == distanceThreshold + 1);
-                neighbors[row][col] = neighborFound ? distanceThreshold : 0;
-                neighborCount += neighborFound ? 1 : 0;
+    private static long flagScanTiles(NeighborGrid neighbors, int distanceThreshold, ActiveTiles tiles) {
+        long neighborCount = 0;
+        long tilesSkipped = 0;
+        for (int tileRow = 0; tileRow < tiles.tileRows; tileRow++) {
+            int startRow = tileRow * TILE_SIZE;
+            int endRow = Math.min(tiles.rowCount, startRow + TILE_SIZE);
+            for (int tileCol = 0; tileCol < tiles.tileCols; tileCol++) {
+                if (!tiles.scanNeeded(tileRow, tileCol)) {
+                    tilesSkipped++;
+                    continue;
+                }
+                int startCol = tileCol * TILE_SIZE;
+                int endCol = Math.min(tiles.colCount, startCol + TILE_SIZE);
+                int tileCount = 0;
+                for (int row = startRow; row < endRow; row++) {
+                    tileCount += flagScanRow(neighbors, neighbors.index(row, 0),
+                            row > 0 ? neighbors : null, neighbors.index(row - 1, 0),
+                            row < neighbors.rowCount - 1 ? neighbors : null, neighbors.index(row + 1, 0),
+                            distanceThreshold, startCol, endCol);
+                }
+                if (tileCount > 0) {
+                    int tile = tileRow * tiles.tileCols + tileCol;
+                    tiles.marked[tile] += tileCount;
+                    tiles.nextActive[tile] = true;
+                    neighborCount += tileCount;
+                }
             }
         }
+        tiles.endPass();
+        Metrics.tilesSkipped.add(tilesSkipped);
         return neighborCount;
     }
 
     /**
-     * scan entire two dimensional array
-     * for each point if it does not have value set check if there is a neighbor that is flagged.
-     * Set the value of each cell to one less than the value of its neighbor
+     * updates one row of the grid, the rows above and below can come from another grid
+     * so that bands can read halo copies
      * @param neighbors the grid used for tracking what is getting set to true
+     * @param rowStart index of the first cell of the row
+     * @param aboveGrid grid holding the row above, null for the first row
+     * @param aboveStart index of the first cell of the row above in aboveGrid
+     * @param belowGrid grid holding the row below, null for the last row
+     * @param belowStart index of the first cell of the row below in belowGrid
      * @param distanceThreshold the maximum Manhattan Distance to check 0 being self
-     * @param rowCount because the neighbors array rows could be larger than the dataset we use this
      * @return the amount of newly flagged cells
      */
-    private static int flagScanOneForRows(int[][] neighbors, int distanceThreshold, int rowCount) {
-        boolean hasError = false;
+    private static int flagScanRow(NeighborGrid neighbors, long rowStart,
+                                   NeighborGrid aboveGrid, long aboveStart,
+                                   NeighborGrid belowGrid, long belowStart, int distanceThreshold) {
+        return flagScanRow(neighbors, rowStart, aboveGrid, aboveStart, belowGrid, belowStart, distanceThreshold,
+                0, neighbors.colCount);
+    }
+
+    /**
+     * updates the columns of one row from startCol up to endCol
+     * @param neighbors the grid used for tracking what is getting set to true
+     * @param rowStart index of the first cell of the row
+     * @param aboveGrid grid holding the row above, null for the first row
+     * @param aboveStart index of the first cell of the row above in aboveGrid
+     * @param belowGrid grid holding the row below, null for the last row
+     * @param belowStart index of the first cell of the row below in belowGrid
+     * @param distanceThreshold the maximum Manhattan Distance to check 0 being self
+     * @param startCol the first column updated
+     * @param endCol the column after the last column updated
+     * @return the amount of newly flagged cells
+     */
+    private static int flagScanRow(NeighborGrid neighbors, long rowStart,
+                                   NeighborGrid aboveGrid, long aboveStart,
+                                   NeighborGrid belowGrid, long belowStart, int distanceThreshold,
+                                   int startCol, int endCol) {
         int neighborCount = 0;
-        logger.debug("flagScanOneForRows rowCount " + rowCount);
-        for (int row = 0; row < rowCount; row++) {
-            for (int col = 0; col < neighbors[row].length; col++) {
-                if (neighbors[row][col] > distanceThreshold) continue;
-                boolean neighborFound = (row > 0 && neighbors[row-1][col] == distanceThreshold + 1) ||
-                        (row < neighbors.length -1 && neighbors[row+1][col] == distanceThreshold + 1) ||
-                        (col > 0 && neighbors[row][col-1] == distanceThreshold + 1) ||
-                        (col < neighbors[row].length -1 && neighbors[row][col+1]  == distanceThreshold + 1);
-                int prevVal = neighbors[row][col];
-                neighbors[row][col] = neighborFound ? distanceThreshold : prevVal;
-                neighborCount += neighborFound && prevVal == 0 ? 1 : 0;
+        int lastCol = neighbors.colCount - 1;
+        for (int col = startCol; col < endCol; col++) {
+            int prevVal = neighbors.get(rowStart + col);
+            if (prevVal > distanceThreshold) continue;
+            boolean neighborFound = (aboveGrid != null && aboveGrid.get(aboveStart + col) == distanceThreshold + 1) ||
+                    (belowGrid != null && belowGrid.get(belowStart + col) == distanceThreshold + 1) ||
+                    (col > 0 && neighbors.get(rowStart + col - 1) == distanceThreshold + 1) ||
+                    (col < lastCol && neighbors.get(rowStart + col + 1) == distanceThreshold + 1);
+            if (neighborFound) {
+                neighbors.set(rowStart + col, distanceThreshold);
+                neighborCount += prevVal == 0 ? 1 : 0;
+            }
+        }
+        return neighborCount;
+    }
+
+    /**
+     * runs one pass over every row split into a row band per pool thread
+     * a pass only spreads values by one step, so a band only needs the rows
+     * directly above and below it from its neighbors. Every halo row is copied before
+     * any band starts, so bands never read rows another band is writing
+     * @param neighbors the grid used for tracking what is getting set to true
+     * @param distanceThreshold the maximum Manhattan Distance to check 0 being self
+     * @param bands the row bands and their halos, reused by every pass over the grid
+     * @param pool the pool running the row bands
+     * @param simd whether rows are updated with ScanVector
+     * @return the amount of newly flagged cells
+     */
+    private static long flagScanOneParallel(NeighborGrid neighbors, int distanceThreshold, RowBands bands,
+                                           ForkJoinPool pool, boolean simd) {
+        bands.copyHalos(neighbors);
+        ArrayList<ForkJoinTask<Long>> tasks = new ArrayList<>();
+        for (int band = 0; band < bands.haloAbove.length; band++) {
+            final int bandStart = bands.bandStarts[band];
+            final int bandEnd = bands.bandStarts[band + 1];
+            final NeighborGrid haloAbove = bands.haloAbove[band];
+            final NeighborGrid haloBelow = bands.haloBelow[band];
+            tasks.add(pool.submit(() -> flagScanBand(neighbors, distanceThreshold,
+                    bandStart, bandEnd, haloAbove, haloBelow, simd)));
+        }
+        long neighborCount = 0;
+        for (ForkJoinTask<Long> task : tasks) {
+            neighborCount += task.join();
+        }
+        return neighborCount;
+    }
+
+    /**
+     * one pass over the rows of one band, reading the rows outside the band from halo copies
+     * @param neighbors the grid used for tracking what is getting set to true
+     * @param distanceThreshold the maximum Manhattan Distance to check 0 being self
+     * @param startRow the first row of the band
+     * @param endRow the row after the last row of the band
+     * @param haloAbove copy of the row before startRow, null at the top of the grid
+     * @param haloBelow copy of the row at endRow, null at the bottom of the grid
+     * @param simd whether rows are updated with ScanVector
+     * @return the amount of newly flagged cells in the band
+     */
+    private static long flagScanBand(NeighborGrid neighbors, int distanceThreshold, int startRow, int endRow,
+                                    NeighborGrid haloAbove, NeighborGrid haloBelow, boolean simd) {
+        long neighborCount = 0;
+        for (int row = startRow; row < endRow; row++) {
+            NeighborGrid aboveGrid = row == startRow ? haloAbove : neighbors;
+            long aboveStart = row == startRow ? 0 : neighbors.index(row - 1, 0);
+            NeighborGrid belowGrid = row == endRow - 1 ? haloBelow : neighbors;
+            long belowStart = row == endRow - 1 ? 0 : neighbors.index(row + 1, 0);
+            if (simd) {
+                neighborCount += ScanVector.flagScanRow((NeighborGrid.IntGrid) neighbors, (int) neighbors.index(row, 0),
+                        (NeighborGrid.IntGrid) aboveGrid, (int) aboveStart,
+                        (NeighborGrid.IntGrid) belowGrid, (int) belowStart, distanceThreshold);
+            } else {
+                neighborCount += flagScanRow(neighbors, neighbors.index(row, 0),
+                        aboveGrid, aboveStart, belowGrid, belowStart, distanceThreshold);
             }
         }
         return neighborCount;
@@ -174,7 +619,7 @@ class ScanMultiPass {
      * distanceThreshold Manhattan Distance of a flagged (true) value
      * For each flagged element add a value distanceThreshold + 1 to the neighbors array
      * in the corresponding location
-     * then make repeated passes flagScanOneForRows flagging all neighbors of flagged values
+     * then make repeated passes flagScanTiles flagging all neighbors of flagged values
      * If all values in the array flagged exit
      * @param flagData an object containing
      *                grid coordinates of flagged values set to true
@@ -185,45 +630,55 @@ class ScanMultiPass {
      *                       can propagate downward
      * @param rowCount the amount of rows to work against
      * @param flagStartIndex where to start on our list of flags
+     * @param pool the pool running the row bands, or null to scan on the calling thread
+     * @param simd whether rows are updated with ScanVector
      * @return a ScanRowsResult object containing flags found and how far to advance the flagIndex
      *                       tracking the last processed flag coordinate
      */
+    @SuppressWarnings("try")
     private static ScanRowsResult flagScanRows(FlagValues flagData,
-                                               int[][] neighbors,
+                                               NeighborGrid neighbors,
                                                int neighborOffset,
                                                int startRow, int rowCount, int lastNonDiscardedRow,
-                                               int flagStartIndex) {
+                                               int flagStartIndex, ForkJoinPool pool, boolean simd) {
         logger.debug("flagScanRows neigborOffset: " + neighborOffset + " startRow " + startRow +
                 " rowCount " + rowCount + " flagStartIndex " + flagStartIndex +
                 " lastNonDiscardedRow " + lastNonDiscardedRow);
         int flagIndex = flagStartIndex;
         int flagIndexToReturn = flagIndex;
-        while (flagIndex < flagData.flags.size()) {
-            int row = flagData.flags.get(flagIndex).row();
+        ActiveTiles tiles = pool == null && !simd ? new ActiveTiles(rowCount, neighbors.colCount, neighborOffset > 0) :
+                null;
+        if (tiles != null && neighborOffset > 0) tiles.markRow(neighbors, 0);
+        FlagList.Cursor flag = flagData.flags.cursor(flagStartIndex);
+        while (flag.next()) {
+            int row = flag.row();
             int neighborRowIndex = row - startRow + neighborOffset;
-            logger.debug("flagIndex " + flagIndex + " has value "
-                    + flagData.flags.get(flagIndex).row() + "," + flagData.flags.get(flagIndex).col());
             if (neighborRowIndex >= rowCount) break;
             if (row <= lastNonDiscardedRow) {
-                logger.debug("set flagIndexToReturn = flagIndex + 1");
-                        flagIndexToReturn = flagIndex + 1;
+                flagIndexToReturn = flagIndex + 1;
             }
-            logger.debug("neighborRowIndex = row " + row + "- startRow" + startRow + " + neighborOffset " +
-                    neighborOffset + " = " + neighborRowIndex);
-            neighbors[neighborRowIndex][flagData.flags.get(flagIndex).col()] = flagData.distanceThreshold + 1;
+            neighbors.set(neighbors.index(neighborRowIndex, flag.col()), flagData.distanceThreshold + 1);
+            if (tiles != null) tiles.mark(neighborRowIndex, flag.col());
             flagIndex++;
         }
-        int neighborCount = flagIndex - flagStartIndex;
-        int gridSize = neighbors.length * neighbors[0].length;
+        long neighborCount = flagIndex - flagStartIndex;
+        long gridSize = (long) neighbors.rowCount * neighbors.colCount;
+        RowBands bands = pool != null ? new RowBands(neighbors, rowCount, pool.getParallelism()) : null;
 
         logger.info("initial array neighbor count "+ neighborCount);
-        logger.debug(GridPrint.printArray(neighbors));
+        if (logger.isDebugEnabled()) logger.debug(GridPrint.printArray(neighbors));
         for (int i = flagData.distanceThreshold; i > 0; i--) {
-            neighborCount+= flagScanOneForRows(neighbors, i, rowCount);
+            try (Metrics.Phase phase = Metrics.phase("pass", flagData.distanceThreshold - i + 1)) {
+                neighborCount+= pool != null ? flagScanOneParallel(neighbors, i, bands, pool, simd) :
+                        simd ? ScanVector.flagScanOneForRows((NeighborGrid.IntGrid) neighbors, i, rowCount) :
+                        flagScanTiles(neighbors, i, tiles);
+            }
+            Metrics.passesRun.increment();
             logger.info("after scan " + (flagData.distanceThreshold - i + 1) + " neighbor count "+ neighborCount);
-            logger.debug(GridPrint.printArray(neighbors));
+            if (logger.isDebugEnabled()) logger.debug(GridPrint.printArray(neighbors));
             if (neighborCount == gridSize) {
                 logger.info("all elements flagged, exiting");
+                Metrics.passesSaved.add(i - 1);
                 break;
             }
         }
@@ -237,27 +692,17 @@ class ScanMultiPass {
      *  to allow more processing and clear all other rows
      *  to ensure that the bottom rows in one chunk are flagged by the top rows in the next chunk
      *  we calculate extra rows equal to the distanceThreshold and discard them
-     * @param neighbors two dimensional array to hold calculations for a portion of the result
+     * @param neighbors grid to hold calculations for a portion of the result
      * @param discardRows count of rows only calculated to ensure rows above are correct
      * @return count of found neighbors in this chunk
      */
-    private static int neighborShift(int [][] neighbors, int discardRows) {
-        int endRow = neighbors.length -1 - discardRows;
-        logger.debug("before neighborshift\n " + GridPrint.printArray(neighbors));
-        System.arraycopy(neighbors[endRow], 0, neighbors[0], 0, neighbors[endRow].length);
-        logger.debug("after arraycopy\n " + GridPrint.printArray(neighbors));
-        for (int i = endRow ; i >= 1 ; i--) {
-            Arrays.fill(neighbors[i],0);
-        }
-        logger.debug("after Arrays.fill\n " + GridPrint.printArray(neighbors));
-        int flagsToDiscard = 0;
-        for (int row = endRow; row < neighbors.length; row++) {
-            for (int col = 0; col < neighbors[row].length; col++) {
-                flagsToDiscard += neighbors[row][col] > 0 ? 1 : 0;
-                neighbors[row][col] = 0;
-            }
-        }
-        logger.debug("after neighborshift\n " + GridPrint.printArray(neighbors));
+    private static long neighborShift(NeighborGrid neighbors, int discardRows) {
+        int endRow = neighbors.rowCount -1 - discardRows;
+        neighbors.copyRow(endRow, 0);
+        neighbors.clearRows(1, endRow + 1);
+        long flagsToDiscard = neighbors.countMarked(endRow, neighbors.rowCount);
+        neighbors.clearRows(endRow, neighbors.rowCount);
+        if (logger.isDebugEnabled()) logger.debug("after neighborshift\n " + GridPrint.printArray(neighbors));
         return flagsToDiscard;
     }
 }
@@ -0,0 +1,285 @@
+package ManhattanDistance;
+
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * find all neighbors of true values in 2 dimensional array within
+ * distanceThreshold Manhattan Distance of a flagged (true) value
+ * by measuring the area of a union of squares, the cost depends on neither the grid size nor distanceThreshold
+ *
+ * Under the rotation u = row + col, v = row - col the diamond around a flag becomes the square
+ * |u - flagU| <= distanceThreshold, |v - flagV| <= distanceThreshold, holding the points where u and v
+ * have the same parity. Splitting the points by that parity gives two integer lattices,
+ * on each the squares are rectangles and the area of their union is found with a sweep over u
+ * and a segment tree over v.
+ *
+ * The union is counted on the unbounded plane, so the cells off the grid are taken away by
+ * inclusion exclusion. Above the grid a cell y rows out is covered when y is at most the height
+ * of a tent of slope one over its column, the part of the union above the grid is the area under
+ * the upper envelope of one tent per flag. The same holds below, left and right of the grid,
+ * and the four corners, counted twice, are triangles added back.
+ */
+class ScanRotatedUnion {
+    private static Logger logger = LoggerFactory.getLogger(ScanRotatedUnion.class);
+
+    /**
+     * Find all neighbors of true values in 2 dimensional array within
+     * distanceThreshold Manhattan Distance of a flagged (true) value
+     * @param flagData an object containing
+     *                grid coordinates of flagged values set to true
+     *                distanceThreshold a number of Manhattan Distance steps to walk for neighbors
+     * @return count of all neighbors within distanceThreshold Manhattan Distance of a flagged (true) value
+     */
+    public static long rotatedScan(FlagValues flagData) {
+        logger.info("flagging with rotated rectangle union");
+        int flagCount = flagData.flags.size();
+        if (flagCount == 0) return 0;
+        long rowCount = flagData.rowCount;
+        long colCount = flagData.colCount;
+        // no two cells of the grid are further apart than rowCount + colCount
+        long reach = Math.min(flagData.distanceThreshold, rowCount + colCount);
+        int[] rows = new int[flagCount];
+        int[] cols = new int[flagCount];
+        for (FlagList.Cursor flag = flagData.flags.cursor(); flag.next(); ) {
+            rows[flag.index()] = flag.row();
+            cols[flag.index()] = flag.col();
+        }
+        int[] byU = sortedOrder(rows, cols, 1, 0);
+        int[] byV = sortedOrder(rows, cols, -1, colCount - 1);
+        long unionArea = Math.addExact(latticeUnionArea(rows, cols, byU, byV, reach, 0),
+                latticeUnionArea(rows, cols, byU, byV, reach, 1));
+
+        // tents above and below the grid stand on columns, left and right of it on rows
+        int[] byCol = sortedOrder(cols, rows, 0, 0);
+        int[] byRow = sortedOrder(rows, cols, 0, 0);
+        long offGrid = envelopeArea(cols, rows, byCol, reach, 0)
+                + envelopeArea(cols, rows, byCol, reach, rowCount - 1)
+                + envelopeArea(rows, cols, byRow, reach, 0)
+                + envelopeArea(rows, cols, byRow, reach, colCount - 1);
+        long corners = cornerArea(rows, cols, reach, 0, 0)
+                + cornerArea(rows, cols, reach, 0, colCount - 1)
+                + cornerArea(rows, cols, reach, rowCount - 1, 0)
+                + cornerArea(rows, cols, reach, rowCount - 1, colCount - 1);
+        long neighborCount = unionArea - offGrid + corners;
+        logger.info("rotated union area " + unionArea + " off grid " + offGrid + " corners " + corners);
+        logger.info("rotated union neighbor count " + neighborCount);
+        return neighborCount;
+    }
+
+    /**
+     * orders flags by rowWeight * row + colWeight * col without boxing, ties broken by index
+     * @param rows flag rows, or flag columns when sorting on columns
+     * @param cols flag columns, or flag rows when sorting on columns
+     * @param sign 1 to sort by row + col, -1 by row - col, 0 by row alone
+     * @param offset added to the key so it is never negative
+     * @return flag indexes in key order
+     */
+    private static int[] sortedOrder(int[] rows, int[] cols, int sign, long offset) {
+        long[] keys = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            long key = rows[i] + sign * (long) cols[i] + offset;
+            // keys are below 2^32 and indexes below 2^31, so packing them keeps the order
+            keys[i] = key << 31 | i;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = (int) (keys[i] & Integer.MAX_VALUE);
+        }
+        return order;
+    }
+
+    /**
+     * counts the points of one parity class covered by the rotated squares on the unbounded plane
+     * a point u = 2x + parity, v = 2y + parity maps to the integer cell x, y,
+     * so every square becomes a rectangle of cells and the union area is found with a sweep over x
+     * both the start and the end of every rectangle move with u, so the flags sorted by u give
+     * the start and end events in order, and the flags sorted by v give the edges in order
+     * @param rows flag rows
+     * @param cols flag columns
+     * @param byU flag indexes sorted by row + col
+     * @param byV flag indexes sorted by row - col
+     * @param reach the distanceThreshold
+     * @param parity 0 for points with even u and v, 1 for odd
+     * @return the number of covered points of the class
+     */
+    private static long latticeUnionArea(int[] rows, int[] cols, int[] byU, int[] byV, long reach, int parity) {
+        int flagCount = rows.length;
+        // cell edges in v, each rectangle opens at its low edge and closes after its high edge
+        long[] edges = new long[2 * flagCount];
+        int edgeCount = 0;
+        int low = 0;
+        int high = 0;
+        while (low < flagCount || high < flagCount) {
+            long lowEdge = low < flagCount ? lowCell(vOf(rows, cols, byV[low]) - reach, parity) : Long.MAX_VALUE;
+            long highEdge = high < flagCount ? highCell(vOf(rows, cols, byV[high]) + reach, parity) + 1 :
+                    Long.MAX_VALUE;
+            long edge = Math.min(lowEdge, highEdge);
+            if (edge == lowEdge) low++;
+            else high++;
+            if (edgeCount == 0 || edges[edgeCount - 1] != edge) edges[edgeCount++] = edge;
+        }
+        if (edgeCount < 2) return 0;
+        CoverTree tree = new CoverTree(edges, edgeCount);
+        long area = 0;
+        long previousX = 0;
+        int start = 0;
+        int end = 0;
+        while (end < flagCount) {
+            int startFlag = start < flagCount ? byU[start] : -1;
+            int endFlag = byU[end];
+            long startX = startFlag >= 0 ? lowCell(uOf(rows, cols, startFlag) - reach, parity) : Long.MAX_VALUE;
+            long endX = highCell(uOf(rows, cols, endFlag) + reach, parity) + 1;
+            long x = Math.min(startX, endX);
+            area = Math.addExact(area, Math.multiplyExact(tree.coveredLength(), x - previousX));
+            previousX = x;
+            int flag = x == endX ? endFlag : startFlag;
+            long vLow = lowCell(vOf(rows, cols, flag) - reach, parity);
+            long vHigh = highCell(vOf(rows, cols, flag) + reach, parity) + 1;
+            if (vLow < vHigh && lowCell(uOf(rows, cols, flag) - reach, parity) <
+                    highCell(uOf(rows, cols, flag) + reach, parity) + 1) {
+                tree.update(vLow, vHigh, x == endX ? -1 : 1);
+            }
+            if (x == endX) end++;
+            else start++;
+        }
+        return area;
+    }
+
+    private static long uOf(int[] rows, int[] cols, int flag) {
+        return (long) rows[flag] + cols[flag];
+    }
+
+    private static long vOf(int[] rows, int[] cols, int flag) {
+        return (long) rows[flag] - cols[flag];
+    }
+
+    /**
+     * @param coordinate the lowest u or v of a square
+     * @param parity the parity class
+     * @return the first lattice cell of the class at or above the coordinate
+     */
+    private static long lowCell(long coordinate, int parity) {
+        return -Math.floorDiv(parity - coordinate, 2);
+    }
+
+    /**
+     * @param coordinate the highest u or v of a square
+     * @param parity the parity class
+     * @return the last lattice cell of the class at or below the coordinate
+     */
+    private static long highCell(long coordinate, int parity) {
+        return Math.floorDiv(coordinate - parity, 2);
+    }
+
+    /**
+     * counts the cells on one side of the grid covered by the flags, the area under
+     * the upper envelope of one tent per flag
+     * a flag at distance out from the edge raises a tent of height reach - out at its position
+     * along the edge, a tent of height h covers h^2 cells. Tents under another tent are dropped,
+     * then each point lies under a run of consecutive tents, so the union is the sum of the tents
+     * less the overlap of each neighboring pair
+     * @param positions flag positions along the edge
+     * @param depths flag positions across the edge
+     * @param order flag indexes sorted by position
+     * @param reach the distanceThreshold
+     * @param edge the row or column of the grid next to the side
+     * @return the number of covered cells beyond the edge
+     */
+    private static long envelopeArea(int[] positions, int[] depths, int[] order, long reach, long edge) {
+        long[] stackPositions = new long[order.length];
+        long[] stackHeights = new long[order.length];
+        int size = 0;
+        for (int flag : order) {
+            long height = reach - Math.abs(edge - depths[flag]);
+            if (height <= 0) continue;
+            long position = positions[flag];
+            if (size > 0 && stackHeights[size - 1] - (position - stackPositions[size - 1]) >= height) continue;
+            while (size > 0 && height - (position - stackPositions[size - 1]) >= stackHeights[size - 1]) size--;
+            stackPositions[size] = position;
+            stackHeights[size] = height;
+            size++;
+        }
+        long area = 0;
+        for (int i = 0; i < size; i++) {
+            area = Math.addExact(area, Math.multiplyExact(stackHeights[i], stackHeights[i]));
+            if (i == 0) continue;
+            long overlap = stackHeights[i - 1] + stackHeights[i] - (stackPositions[i] - stackPositions[i - 1]);
+            if (overlap > 0) area -= Math.multiplyExact(overlap, overlap) / 4;
+        }
+        return area;
+    }
+
+    /**
+     * counts the cells diagonally beyond a corner of the grid covered by the flags
+     * a cell y rows and x columns out is covered when y + x is at most reach less the distance
+     * of the nearest flag to the corner, a triangle
+     * @param rows flag rows
+     * @param cols flag columns
+     * @param reach the distanceThreshold
+     * @param cornerRow the row of the corner cell
+     * @param cornerCol the column of the corner cell
+     * @return the number of covered cells beyond the corner
+     */
+    private static long cornerArea(int[] rows, int[] cols, long reach, long cornerRow, long cornerCol) {
+        long nearest = Long.MAX_VALUE;
+        for (int i = 0; i < rows.length; i++) {
+            nearest = Math.min(nearest, Math.abs(cornerRow - rows[i]) + Math.abs(cornerCol - cols[i]));
+        }
+        long side = reach - nearest;
+        return side < 2 ? 0 : Math.multiplyExact(side, side - 1) / 2;
+    }
+
+    /**
+     * segment tree over the cell edges in v tracking how many rectangles cover each span
+     * and the total length covered by at least one
+     */
+    private static final class CoverTree {
+        private final long[] edges;
+        private final int spanCount;
+        private final int[] coverCount;
+        private final long[] coveredLength;
+
+        CoverTree(long[] edges, int edgeCount) {
+            this.edges = edges;
+            this.spanCount = edgeCount - 1;
+            this.coverCount = new int[4 * spanCount];
+            this.coveredLength = new long[4 * spanCount];
+        }
+
+        long coveredLength() {
+            return coveredLength[1];
+        }
+
+        /**
+         * adds or removes a rectangle's v range
+         * @param low the first cell covered
+         * @param high the cell after the last covered, both are edges
+         * @param delta 1 to add, -1 to remove
+         */
+        void update(long low, long high, int delta) {
+            update(1, 0, spanCount, Arrays.binarySearch(edges, 0, spanCount + 1, low),
+                    Arrays.binarySearch(edges, 0, spanCount + 1, high), delta);
+        }
+
+        private void update(int node, int nodeLow, int nodeHigh, int low, int high, int delta) {
+            if (high <= nodeLow || nodeHigh <= low) return;
+            if (low <= nodeLow && nodeHigh <= high) {
+                coverCount[node] += delta;
+            } else {
+                int middle = (nodeLow + nodeHigh) >>> 1;
+                update(2 * node, nodeLow, middle, low, high, delta);
+                update(2 * node + 1, middle, nodeHigh, low, high, delta);
+            }
+            if (coverCount[node] > 0) {
+                coveredLength[node] = edges[nodeHigh] - edges[nodeLow];
+            } else if (nodeHigh - nodeLow == 1) {
+                coveredLength[node] = 0;
+            } else {
+                coveredLength[node] = coveredLength[2 * node] + coveredLength[2 * node + 1];
+            }
+        }
+    }
+}
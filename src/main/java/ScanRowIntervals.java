@@ -0,0 +1,92 @@
+package ManhattanDistance;
+
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * find all neighbors of true values in 2 dimensional array within
+ * distanceThreshold Manhattan Distance of a flagged (true) value
+ * without a grid, by sweeping the rows and adding up the column intervals the flags cover
+ * within a row the diamond around a flag distanceThreshold - |row distance| rows away
+ * covers the columns col - halfWidth to col + halfWidth, overlapping intervals are merged
+ * so each covered cell is counted once
+ * memory is O(flags within reach of a row), so huge mostly empty grids need no per-cell storage
+ */
+class ScanRowIntervals {
+    private static Logger logger = LoggerFactory.getLogger(ScanRowIntervals.class);
+
+    /**
+     * Find all neighbors of true values in 2 dimensional array within
+     * distanceThreshold Manhattan Distance of a flagged (true) value
+     * Flags are sorted by row, so the flags within reach of a row are one index range of the list,
+     * the range slides down as the rows advance and rows with no flag in reach are jumped over
+     * @param flagData an object containing
+     *                grid coordinates of flagged values set to true
+     *                distanceThreshold a number of Manhattan Distance steps to walk for neighbors
+     * @return count of all neighbors within distanceThreshold Manhattan Distance of a flagged (true) value
+     */
+    public static long intervalScan(FlagValues flagData) {
+        logger.info("flagging with row interval scan");
+        FlagList flags = flagData.flags;
+        int flagCount = flags.size();
+        long reach = flagData.distanceThreshold;
+        long lastCol = flagData.colCount - 1L;
+        long[] intervals = new long[16];
+        long neighborCount = 0;
+        int low = 0;
+        int high = 0;
+        long row = flagCount == 0 ? flagData.rowCount : Math.max(0, flags.row(0) - reach);
+        while (row < flagData.rowCount) {
+            // flags from low to high are within reach of row
+            while (low < flagCount && flags.row(low) < row - reach) low++;
+            while (high < flagCount && flags.row(high) <= row + reach) high++;
+            if (low == high) {
+                if (high == flagCount) break;
+                row = flags.row(high) - reach;
+                continue;
+            }
+            if (high - low > intervals.length) {
+                intervals = new long[Math.max(high - low, intervals.length * 2)];
+            }
+            int intervalCount = 0;
+            for (int i = low; i < high; i++) {
+                long halfWidth = reach - Math.abs(row - flags.row(i));
+                long start = Math.max(0, flags.col(i) - halfWidth);
+                long end = Math.min(lastCol, flags.col(i) + halfWidth);
+                // the start sorts first, both fit in 32 bits once clipped to the grid
+                intervals[intervalCount++] = start << 32 | end;
+            }
+            neighborCount += mergedLength(intervals, intervalCount);
+            row++;
+        }
+        logger.info("row interval neighbor count " + neighborCount);
+        return neighborCount;
+    }
+
+    /**
+     * sorts column intervals and adds up the length of their union
+     * @param intervals packed intervals, the start column in the high 32 bits
+     *                  and the inclusive end column in the low 32 bits
+     * @param intervalCount the number of intervals in use
+     * @return the number of columns covered by at least one interval
+     */
+    private static long mergedLength(long[] intervals, int intervalCount) {
+        Arrays.sort(intervals, 0, intervalCount);
+        long covered = 0;
+        long runStart = -1;
+        long runEnd = -2;
+        for (int i = 0; i < intervalCount; i++) {
+            long start = intervals[i] >>> 32;
+            long end = intervals[i] & 0xFFFFFFFFL;
+            if (start > runEnd + 1) {
+                covered += runEnd - runStart + 1;
+                runStart = start;
+                runEnd = end;
+            } else if (end > runEnd) {
+                runEnd = end;
+            }
+        }
+        return covered + runEnd - runStart + 1;
+    }
+}
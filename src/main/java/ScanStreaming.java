@@ -0,0 +1,358 @@
+package ManhattanDistance;
+
+import java.io.Reader;
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * find all neighbors of true values in 2 dimensional array within
+ * distanceThreshold Manhattan Distance of a flagged (true) value
+ * while the rows are read, holding only a rolling window of rows
+ *
+ * The Manhattan Distance from a cell to its nearest flag is the smallest, over the columns of its row,
+ * of the column distance plus the distance to the nearest flag straight up or down that column.
+ * For each column the window keeps the row of the last flag at or above the current row
+ * and a queue of the flag rows below it that have been read.
+ * A row is finished once the row distanceThreshold below it has been read, no later flag can reach it,
+ * so at most distanceThreshold + 1 rows of flags are queued and memory is O(cols * distanceThreshold)
+ * whatever the grid height. Finishing a row is two sweeps along it, so the cost does not depend on
+ * distanceThreshold either
+ */
+class ScanStreaming {
+    private static Logger logger = LoggerFactory.getLogger(ScanStreaming.class);
+
+    /**
+     * Find all neighbors of true values in 2 dimensional array within
+     * distanceThreshold Manhattan Distance of a flagged (true) value
+     * reading the grid straight from json, the flags are never collected
+     * @param jsonReader the source of the json document, closed when parsing completes
+     * @return count of all neighbors within distanceThreshold Manhattan Distance of a flagged (true) value
+     * @throws IllegalArgumentException if the document has no distanceThreshold
+     */
+    public static long streamScan(Reader jsonReader) {
+        return streamScan(jsonReader, null);
+    }
+
+    /**
+     * streamScan from json, also writing each row to a GridWriter as soon as it is finished
+     * @param jsonReader the source of the json document, closed when parsing completes
+     * @param writer the writer the covered cells are written to, null to only count
+     * @return count of all neighbors within distanceThreshold Manhattan Distance of a flagged (true) value
+     * @throws IllegalArgumentException if the document has no distanceThreshold
+     */
+    @SuppressWarnings("try")
+    public static long streamScan(Reader jsonReader, GridWriter writer) {
+        logger.info("flagging with streaming scan");
+        RowWindow window = new RowWindow(writer);
+        try (Metrics.Phase phase = Metrics.phase("stream")) {
+            GridReader.streamJsonNeighborData(jsonReader, window);
+        }
+        logger.info("streaming neighbor count " + window.neighborCount);
+        return window.neighborCount;
+    }
+
+    /**
+     * Find all neighbors of true values in 2 dimensional array within
+     * distanceThreshold Manhattan Distance of a flagged (true) value
+     * feeding flags that are already in memory through the same window
+     * @param flagData an object containing
+     *                grid coordinates of flagged values set to true
+     *                distanceThreshold a number of Manhattan Distance steps to walk for neighbors
+     * @return count of all neighbors within distanceThreshold Manhattan Distance of a flagged (true) value
+     */
+    public static long streamScan(FlagValues flagData) {
+        logger.info("flagging with streaming scan");
+        RowWindow window = new RowWindow(null);
+        GridReader.replayFlags(flagData.flags, flagData.rowCount, flagData.colCount,
+                flagData.distanceThreshold, window);
+        logger.info("streaming neighbor count " + window.neighborCount);
+        return window.neighborCount;
+    }
+
+    /**
+     * counts the neighbors for every distanceThreshold up to maxThreshold in one read of the grid
+     * the distance from each cell to its nearest flag is found once and tallied,
+     * the running total of the tally gives the count for each threshold
+     * @param jsonReader the source of the json document, closed when parsing completes,
+     *                   its distanceThreshold is ignored
+     * @param maxThreshold the largest distanceThreshold counted
+     * @return counts indexed by distanceThreshold, 0 to maxThreshold
+     */
+    @SuppressWarnings("try")
+    public static long[] thresholdCounts(Reader jsonReader, int maxThreshold) {
+        logger.info("counting thresholds up to " + maxThreshold + " with streaming scan");
+        RowWindow window = new RowWindow(maxThreshold);
+        try (Metrics.Phase phase = Metrics.phase("stream", "thresholds")) {
+            GridReader.streamJsonNeighborData(jsonReader, maxThreshold, window);
+        }
+        return window.cumulativeCounts();
+    }
+
+    /**
+     * counts the neighbors for every distanceThreshold up to maxThreshold
+     * from flags that are already in memory
+     * the flags are indexed by column once rather than queued in a window, a window reaching far down
+     * the grid queues nearly every flag in a slot per column, while the index holds each flag once,
+     * so memory is the flags and a few ints per column whatever maxThreshold is
+     * each row is then finished with the same two sweeps as the window
+     * @param flagData grid dimensions and flag coordinates, its distanceThreshold is ignored
+     * @param maxThreshold the largest distanceThreshold counted
+     * @return counts indexed by distanceThreshold, 0 to maxThreshold
+     */
+    @SuppressWarnings("try")
+    public static long[] thresholdCounts(FlagValues flagData, int maxThreshold) {
+        logger.info("counting thresholds up to " + maxThreshold + " with column index");
+        final int colCount = flagData.colCount;
+        final FlagList flags = flagData.flags;
+        final int reach = Math.min(maxThreshold, Integer.MAX_VALUE - 2);
+        final int cap = reach + 1;
+        // rows of the flags of column c, in row order, at colStart[c] to colStart[c + 1] of flagRows
+        int[] colStart = new int[colCount + 1];
+        for (int i = 0; i < flags.size(); i++) {
+            colStart[flags.col(i) + 1]++;
+        }
+        for (int col = 0; col < colCount; col++) {
+            colStart[col + 1] += colStart[col];
+        }
+        int[] flagRows = new int[flags.size()];
+        int[] next = Arrays.copyOf(colStart, colCount);
+        for (int i = 0; i < flags.size(); i++) {
+            flagRows[next[flags.col(i)]++] = flags.row(i);
+        }
+        // next now walks each column's flags, the first one below the row being finished
+        System.arraycopy(colStart, 0, next, 0, colCount);
+        int[] lastFlagRow = new int[colCount];
+        Arrays.fill(lastFlagRow, -1);
+        int[] distances = new int[colCount];
+        long[] distanceCounts = new long[maxThreshold + 1];
+        try (Metrics.Phase phase = Metrics.phase("count", "thresholds")) {
+            for (int row = 0; row < flagData.rowCount; row++) {
+                for (int col = 0; col < colCount; col++) {
+                    int index = next[col];
+                    int end = colStart[col + 1];
+                    while (index < end && flagRows[index] <= row) {
+                        lastFlagRow[col] = flagRows[index++];
+                    }
+                    next[col] = index;
+                    int distance = lastFlagRow[col] < 0 ? cap : (int) Math.min(cap, (long) row - lastFlagRow[col]);
+                    if (index < end) distance = Math.min(distance, flagRows[index] - row);
+                    distances[col] = distance;
+                }
+                sweepRow(distances, cap, reach, distanceCounts);
+            }
+        }
+        return cumulative(distanceCounts);
+    }
+
+    /**
+     * turns the vertical distance of each column of a row into the Manhattan Distance to the nearest flag
+     * with a sweep each way along the row, tallying each cell's distance
+     * @param distances the vertical distance per column, replaced by the distance to the nearest flag
+     * @param cap the distance standing for no flag within reach
+     * @param reach the largest distance counted
+     * @param distanceCounts the number of cells at each distance, null to only count
+     * @return the number of cells of the row within reach of a flag
+     */
+    private static int sweepRow(int[] distances, int cap, int reach, long[] distanceCounts) {
+        int run = cap;
+        for (int col = 0; col < distances.length; col++) {
+            run = Math.min(distances[col], run + 1);
+            distances[col] = run;
+        }
+        run = cap;
+        int rowCount = 0;
+        for (int col = distances.length - 1; col >= 0; col--) {
+            run = Math.min(distances[col], run + 1);
+            distances[col] = run;
+            rowCount += run <= reach ? 1 : 0;
+            if (distanceCounts != null && run <= reach) distanceCounts[run]++;
+        }
+        return rowCount;
+    }
+
+    /**
+     * @param distanceCounts the number of cells at each distance
+     * @return the running total of the tally, the count for each distanceThreshold
+     */
+    private static long[] cumulative(long[] distanceCounts) {
+        long[] counts = distanceCounts.clone();
+        for (int distance = 1; distance < counts.length; distance++) {
+            counts[distance] += counts[distance - 1];
+        }
+        return counts;
+    }
+
+    /**
+     * the rolling window of flag rows, counts each row as it is finished
+     */
+    private static final class RowWindow implements GridReader.RowHandler {
+        private static final int INITIAL_QUEUE_CAPACITY = 4;
+        /** the most queue slots held across every column, the largest int array */
+        private static final long MAX_QUEUE_SLOTS = Integer.MAX_VALUE - 8;
+        private int reach;
+        private int cap;
+        private int colCount;
+        /** the row of the last flag at or above the row being finished, per column, -1 for none */
+        private int[] lastFlagRow;
+        /** per column ring queues of flag rows not yet passed, queueCapacity entries each */
+        private int[] queuedRows;
+        private int[] queueHead;
+        private int[] queueSize;
+        private int queueCapacity;
+        private int queuedCount;
+        /** the row of the most recently queued flag in any column, -1 for none */
+        private int lastQueuedRow = -1;
+        /** distances to the nearest flag along the row being finished */
+        private int[] distances;
+        private int nextRow;
+        long neighborCount;
+        /** the number of cells at each distance from their nearest flag, null when only counting */
+        private final long[] distanceCounts;
+        /** the writer finished rows are written to, null when only counting */
+        private final GridWriter writer;
+
+        /**
+         * @param writer the writer finished rows are written to, null to only count
+         */
+        RowWindow(GridWriter writer) {
+            this.distanceCounts = null;
+            this.writer = writer;
+        }
+
+        /**
+         * a window that also tallies the distance of every counted cell
+         * @param maxThreshold the largest distance tallied
+         */
+        RowWindow(int maxThreshold) {
+            this.distanceCounts = new long[maxThreshold + 1];
+            this.writer = null;
+        }
+
+        /**
+         * @return the running total of the distance tally, the count for each distanceThreshold
+         */
+        long[] cumulativeCounts() {
+            return cumulative(distanceCounts);
+        }
+
+        @Override
+        public void start(int distanceThreshold, int colCount) {
+            if (distanceThreshold < 0) {
+                throw new IllegalArgumentException("distanceThreshold must be an integer >= 0");
+            }
+            // keeps cap + 1 from overflowing, no grid has distances this large
+            this.reach = Math.min(distanceThreshold, Integer.MAX_VALUE - 2);
+            this.cap = reach + 1;
+            this.colCount = colCount;
+            this.lastFlagRow = new int[colCount];
+            Arrays.fill(lastFlagRow, -1);
+            this.queueCapacity = Math.min(INITIAL_QUEUE_CAPACITY, cap);
+            this.queuedRows = new int[queueSlots(queueCapacity)];
+            this.queueHead = new int[colCount];
+            this.queueSize = new int[colCount];
+            this.distances = new int[colCount];
+            if (writer != null) writer.start(colCount, distanceThreshold);
+            logger.info("streaming window reach " + reach + " cols " + colCount);
+        }
+
+        @Override
+        public void row(int row, int[] flagCols, int flagCount) {
+            // every row before this one has been read, finish the ones no later flag can reach
+            while ((long) nextRow + reach < row) {
+                finishRow(nextRow++);
+            }
+            for (int i = 0; i < flagCount; i++) {
+                enqueue(flagCols[i], row);
+            }
+            if (flagCount > 0) lastQueuedRow = row;
+        }
+
+        @Override
+        public void end(int rowCount) {
+            while (nextRow < rowCount) {
+                finishRow(nextRow++);
+            }
+            logger.info("streaming window queue capacity " + queueCapacity);
+        }
+
+        /**
+         * adds a flag row to the back of a column queue, growing every queue when one is full
+         * @param col the flag column
+         * @param row the flag row
+         */
+        private void enqueue(int col, int row) {
+            if (queueSize[col] == queueCapacity) growQueues();
+            queuedRows[col * queueCapacity + (queueHead[col] + queueSize[col]) % queueCapacity] = row;
+            queueSize[col]++;
+            queuedCount++;
+        }
+
+        /**
+         * doubles the capacity of every column queue, keeping each queue in order from its head
+         */
+        private void growQueues() {
+            int capacity = (int) Math.min(2L * queueCapacity, cap);
+            int[] grown = new int[queueSlots(capacity)];
+            for (int col = 0; col < colCount; col++) {
+                for (int i = 0; i < queueSize[col]; i++) {
+                    grown[col * capacity + i] = queuedRows[col * queueCapacity + (queueHead[col] + i) % queueCapacity];
+                }
+                queueHead[col] = 0;
+            }
+            queuedRows = grown;
+            queueCapacity = capacity;
+        }
+
+        /**
+         * @param capacity the capacity of each column queue
+         * @return the slots of the queues of every column
+         * @throws IllegalStateException if the queues would not fit in one array, when many flags
+         *                               share a column and the reach spans most of the grid
+         */
+        private int queueSlots(int capacity) {
+            long slots = (long) colCount * capacity;
+            if (slots > MAX_QUEUE_SLOTS) {
+                throw new IllegalStateException("streaming window of " + colCount + " columns cannot queue " +
+                        capacity + " flags per column, load the grid instead of streaming it");
+            }
+            return (int) slots;
+        }
+
+        /**
+         * counts the cells of a row within reach of a flag
+         * the vertical distance of each column is the nearer of the last flag at or above the row
+         * and the first queued flag below it, two sweeps along the row then add the column distance
+         * @param row the row to finish, every flag within reach of it has been queued
+         */
+        private void finishRow(int row) {
+            if (lastQueuedRow < 0 || (long) row - lastQueuedRow > reach) {
+                // every flag read so far is out of reach, only rows read later can have flags
+                if (queuedCount > 0) {
+                    Arrays.fill(queueSize, 0);
+                    queuedCount = 0;
+                }
+                if (writer != null) writer.writeUncoveredRow();
+                return;
+            }
+            for (int col = 0; col < colCount; col++) {
+                int size = queueSize[col];
+                int head = queueHead[col];
+                int base = col * queueCapacity;
+                while (size > 0 && queuedRows[base + head] <= row) {
+                    lastFlagRow[col] = queuedRows[base + head];
+                    head = head + 1 == queueCapacity ? 0 : head + 1;
+                    size--;
+                    queuedCount--;
+                }
+                queueHead[col] = head;
+                queueSize[col] = size;
+                int distance = lastFlagRow[col] < 0 ? cap : (int) Math.min(cap, (long) row - lastFlagRow[col]);
+                if (size > 0) distance = Math.min(distance, queuedRows[base + head] - row);
+                distances[col] = distance;
+            }
+            neighborCount += sweepRow(distances, cap, reach, distanceCounts);
+            if (writer != null) writer.writeDistances(distances);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package ManhattanDistance;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API version of the ScanMultiPass per pass update
+ * compares whole lanes of a row against its upper, lower, left and right neighbors at once
+ * Only load this class when ScanMultiPass.VECTOR_AVAILABLE is true,
+ * the JVM needs --add-modules jdk.incubator.vector
+ */
+class ScanVector {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    /**
+     * scan the first rowCount rows of the grid
+     * for each point if it does not have value set check if there is a neighbor that is flagged.
+     * Set the value of each cell to one less than the value of its neighbor
+     * gives the same grid and count as ScanMultiPass.flagScanOneForRows
+     * @param neighbors the grid used for tracking what is getting set to true
+     * @param distanceThreshold the maximum Manhattan Distance to check 0 being self
+     * @param rowCount because the neighbors array rows could be larger than the dataset we use this
+     * @return the amount of newly flagged cells
+     */
+    public static long flagScanOneForRows(NeighborGrid.IntGrid neighbors, int distanceThreshold, int rowCount) {
+        long neighborCount = 0;
+        for (int row = 0; row < rowCount; row++) {
+            // an IntGrid is one array, its indexes fit in an int
+            neighborCount += flagScanRow(neighbors, (int) neighbors.index(row, 0),
+                    row > 0 ? neighbors : null, (int) neighbors.index(row - 1, 0),
+                    row < neighbors.rowCount - 1 ? neighbors : null, (int) neighbors.index(row + 1, 0),
+                    distanceThreshold);
+        }
+        return neighborCount;
+    }
+
+    /**
+     * updates one row in place, interior columns a vector at a time and the edge columns
+     * and any remainder with scalar code
+     * cells at or below distanceThreshold with a neighbor at distanceThreshold + 1 are set to distanceThreshold
+     * @param neighbors the grid used for tracking what is getting set to true
+     * @param rowStart index of the first cell of the row
+     * @param aboveGrid grid holding the row above, null for the first row
+     * @param aboveStart index of the first cell of the row above in aboveGrid
+     * @param belowGrid grid holding the row below, null for the last row
+     * @param belowStart index of the first cell of the row below in belowGrid
+     * @param distanceThreshold the maximum Manhattan Distance to check 0 being self
+     * @return the amount of newly flagged cells in the row
+     */
+    public static int flagScanRow(NeighborGrid.IntGrid neighbors, int rowStart,
+                                  NeighborGrid.IntGrid aboveGrid, int aboveStart,
+                                  NeighborGrid.IntGrid belowGrid, int belowStart, int distanceThreshold) {
+        int[] cur = neighbors.cells();
+        int[] above = aboveGrid == null ? null : aboveGrid.cells();
+        int[] below = belowGrid == null ? null : belowGrid.cells();
+        int colCount = neighbors.colCount;
+        if (colCount < SPECIES.length() + 2) {
+            return flagScanCols(cur, rowStart, above, aboveStart, below, belowStart,
+                    colCount, distanceThreshold, 0, colCount);
+        }
+        int target = distanceThreshold + 1;
+        int neighborCount = flagScanCols(cur, rowStart, above, aboveStart, below, belowStart,
+                colCount, distanceThreshold, 0, 1);
+        int vectorEnd = 1 + SPECIES.loopBound(colCount - 2);
+        int col = 1;
+        for (; col < vectorEnd; col += SPECIES.length()) {
+            IntVector values = IntVector.fromArray(SPECIES, cur, rowStart + col);
+            VectorMask<Integer> open = values.compare(VectorOperators.LE, distanceThreshold);
+            if (!open.anyTrue()) continue;
+            VectorMask<Integer> found = IntVector.fromArray(SPECIES, cur, rowStart + col - 1).eq(target)
+                    .or(IntVector.fromArray(SPECIES, cur, rowStart + col + 1).eq(target));
+            if (above != null) found = found.or(IntVector.fromArray(SPECIES, above, aboveStart + col).eq(target));
+            if (below != null) found = found.or(IntVector.fromArray(SPECIES, below, belowStart + col).eq(target));
+            VectorMask<Integer> flagged = found.and(open);
+            if (!flagged.anyTrue()) continue;
+            neighborCount += flagged.and(values.eq(0)).trueCount();
+            values.blend(distanceThreshold, flagged).intoArray(cur, rowStart + col);
+        }
+        return neighborCount + flagScanCols(cur, rowStart, above, aboveStart, below, belowStart,
+                colCount, distanceThreshold, col, colCount);
+    }
+
+    /**
+     * scalar update of a column range of one row
+     * @param cur the cells of the grid being updated
+     * @param rowStart index of the first cell of the row
+     * @param above the cells holding the row above, null for the first row
+     * @param aboveStart index of the first cell of the row above
+     * @param below the cells holding the row below, null for the last row
+     * @param belowStart index of the first cell of the row below
+     * @param colCount the row length
+     * @param distanceThreshold the maximum Manhattan Distance to check 0 being self
+     * @param startCol first column to update
+     * @param endCol column after the last to update
+     * @return the amount of newly flagged cells in the range
+     */
+    private static int flagScanCols(int[] cur, int rowStart, int[] above, int aboveStart,
+                                    int[] below, int belowStart, int colCount, int distanceThreshold,
+                                    int startCol, int endCol) {
+        int neighborCount = 0;
+        for (int col = startCol; col < endCol; col++) {
+            int prevVal = cur[rowStart + col];
+            if (prevVal > distanceThreshold) continue;
+            boolean neighborFound = (above != null && above[aboveStart + col] == distanceThreshold + 1) ||
+                    (below != null && below[belowStart + col] == distanceThreshold + 1) ||
+                    (col > 0 && cur[rowStart + col - 1] == distanceThreshold + 1) ||
+                    (col < colCount - 1 && cur[rowStart + col + 1] == distanceThreshold + 1);
+            if (neighborFound) {
+                cur[rowStart + col] = distanceThreshold;
+                neighborCount += prevVal == 0 ? 1 : 0;
+            }
+        }
+        return neighborCount;
+    }
+}